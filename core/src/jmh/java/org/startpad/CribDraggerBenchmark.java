@@ -0,0 +1,82 @@
+/*
+  CribDraggerBenchmark.java - Single thread crib scan over a large corpus.
+
+  Each scan operation finds the legal offsets of every crib over the whole
+  ciphertext (megabytes, one letter per byte); rank scores them all.
+
+ */
+
+package org.startpad;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class CribDraggerBenchmark
+    {
+    static final String[] CRIBS = { "WETTERVORHERSAGE", "KEINEBESONDERENEREIGNISSE",
+            "OBERKOMMANDODERWEHRMACHT", "ANXGRUPPEXNORD", "HEILHITLER", "FUNKSPRUCH",
+            "EINSEINS", "NULLNULLNULL" };
+
+    @Param({ "1048576", "8388608" })
+    int length;
+
+    CribDragger dragger;
+    ExecutorService executor;
+
+    @Setup
+    public void setup()
+        {
+        Random random = new Random(EnigmaBenchmark.SEED);
+        byte[] corpus = new byte[this.length];
+        for (int i = 0; i < corpus.length; i++)
+            corpus[i] = (byte) ('A' + random.nextInt(26));
+
+        this.dragger = new CribDragger(ByteBuffer.wrap(corpus));
+        for (String crib : CRIBS)
+            this.dragger.addCrib(crib);
+        this.executor = Executors.newSingleThreadExecutor();
+        this.dragger.scan(this.executor);
+        }
+
+    @TearDown
+    public void tearDown()
+        {
+        this.executor.shutdown();
+        }
+
+    @Benchmark
+    public CribDragger scan()
+        {
+        this.dragger.scan(this.executor);
+        return this.dragger;
+        }
+
+    @Benchmark
+    public List<CribDragger.Placement> rank()
+        {
+        return this.dragger.rank(10, this.executor);
+        }
+    }
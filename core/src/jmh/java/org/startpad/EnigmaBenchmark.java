@@ -0,0 +1,217 @@
+/*
+  EnigmaBenchmark.java - JMH benchmarks for the core Enigma engine.
+
+  Messages are generated from a fixed seed and fork/iteration counts are
+  pinned here, so runs are comparable from one build to the next:
+
+    mvn -Pbench package
+    java -jar target/benchmarks.jar -rf json -rff results.json
+
+ */
+
+package org.startpad;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m" })
+public class EnigmaBenchmark
+    {
+    static final long SEED = 0x456E69676D61L;
+
+    @Param({ "16", "1024", "65536" })
+    int length;
+
+    String message;
+    byte[] bytes;
+    byte[] bytesOut;
+    String cipher;
+    Enigma machine;
+    Enigma machineTraced;
+    Enigma machineM4;
+    Enigma machineBuffered;
+    Enigma.Settings settingsPlain;
+    Enigma.Settings settingsPlugged;
+    char ch;
+
+    @Setup
+    public void setup()
+        {
+        this.message = message(this.length, SEED);
+        this.bytes = this.message.getBytes(Charset.forName("ISO-8859-1"));
+        this.bytesOut = new byte[this.length];
+
+        this.settingsPlain = settings("");
+        this.settingsPlugged = settings("AZ BY CX DW EV FU GT HS IR JQ");
+
+        this.machine = new Enigma(null);
+        this.machine.init(settings("AZ BY CX DW EV FU GT HS IR JQ"));
+
+        this.machineTraced = new Enigma(new Enigma.Trace()
+            {
+            public void Callback(String trace)
+                {
+                }
+            });
+        this.machineTraced.init(settings("AZ BY CX DW EV FU GT HS IR JQ"));
+
+        this.machineBuffered = new Enigma(null);
+        this.machineBuffered.init(settings("AZ BY CX DW EV FU GT HS IR JQ"));
+        this.machineBuffered.setTraceBuffer(new TraceBuffer(1024));
+
+        this.machineM4 = new Enigma(null);
+        this.machineM4.init(settingsM4("AZ BY CX DW EV FU GT HS IR JQ"));
+
+        this.cipher = this.machine.encode(this.message);
+        this.machine.init(null);
+        }
+
+    @Benchmark
+    public char encodeChar()
+        {
+        this.ch = (char) (this.ch == 'Z' ? 'A' : this.ch + 1);
+        return this.machine.encodeChar(this.ch);
+        }
+
+    @Benchmark
+    public char encodeCharM4()
+        {
+        this.ch = (char) (this.ch == 'Z' ? 'A' : this.ch + 1);
+        return this.machineM4.encodeChar(this.ch);
+        }
+
+    @Benchmark
+    public char encodeCharTraced()
+        {
+        this.ch = (char) (this.ch == 'Z' ? 'A' : this.ch + 1);
+        return this.machineTraced.encodeChar(this.ch);
+        }
+
+    @Benchmark
+    public char encodeCharTraceBuffer()
+        {
+        this.ch = (char) (this.ch == 'Z' ? 'A' : this.ch + 1);
+        return this.machineBuffered.encodeChar(this.ch);
+        }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String encode()
+        {
+        this.machine.init(null);
+        return this.machine.encode(this.message);
+        }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String encodeTraced()
+        {
+        this.machineTraced.init(null);
+        return this.machineTraced.encode(this.message);
+        }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int encodeBytes()
+        {
+        this.machine.init(null);
+        return this.machine.encode(this.bytes, 0, this.bytes.length, this.bytesOut, 0);
+        }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int encodeBytesLettersOnly()
+        {
+        this.machine.init(null);
+        return this.machine.encode(this.bytes, 0, this.bytes.length, this.bytesOut, 0, true);
+        }
+
+    @Benchmark
+    public void initPlain(Blackhole bh)
+        {
+        this.settingsPlain.plugs = "";
+        this.machine.init(this.settingsPlain);
+        bh.consume(this.machine);
+        }
+
+    @Benchmark
+    public void initPlugged(Blackhole bh)
+        {
+        this.settingsPlugged.plugs = "AZ BY CX DW EV FU GT HS IR JQ";
+        this.machine.init(this.settingsPlugged);
+        bh.consume(this.machine);
+        }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String groupLetters()
+        {
+        return Enigma.groupLetters(this.cipher);
+        }
+
+    static Enigma.Settings settings(String plugs)
+        {
+        Enigma.Settings settings = new Enigma.Settings();
+
+        settings.rotors = new String[] { "IV", "II", "V" };
+        settings.position = new char[] { 'Q', 'E', 'V' };
+        settings.rings = new char[] { 'B', 'U', 'L' };
+        settings.plugs = plugs;
+        return settings;
+        }
+
+    /*
+     * Four rotor naval key, with two-notch rotors in the middle and right.
+     */
+    static Enigma.Settings settingsM4(String plugs)
+        {
+        Enigma.Settings settings = new Enigma.Settings();
+
+        settings.rotors = new String[] { "Gamma", "II", "VI", "VIII" };
+        settings.reflector = "C-Thin";
+        settings.position = new char[] { 'N', 'Q', 'E', 'V' };
+        settings.rings = new char[] { 'C', 'B', 'U', 'L' };
+        settings.plugs = plugs;
+        return settings;
+        }
+
+    /*
+     * Mixed case text with spaces and punctuation, roughly like real traffic.
+     */
+    static String message(int length, long seed)
+        {
+        Random random = new Random(seed);
+        char[] ach = new char[length];
+
+        for (int i = 0; i < length; i++)
+            {
+            int r = random.nextInt(32);
+            if (r < 26)
+                ach[i] = (char) ((random.nextInt(4) == 0 ? 'A' : 'a') + r);
+            else if (r < 30)
+                ach[i] = ' ';
+            else
+                ach[i] = ".,!?".charAt(random.nextInt(4));
+            }
+        return new String(ach);
+        }
+    }
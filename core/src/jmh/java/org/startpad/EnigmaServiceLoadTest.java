@@ -0,0 +1,187 @@
+/*
+  EnigmaServiceLoadTest.java - Loopback load test for EnigmaService.
+
+  Starts the service on an ephemeral loopback port and drives it with
+  closed-loop clients (each sends a request, waits for the response,
+  repeats) at rising concurrency, reporting throughput and client-side
+  latency percentiles for each level - how p99 holds up as concurrency
+  grows.  Each level runs twice: over a few keys, which the pool soon
+  holds compiled, and over many distinct keys, far more than the pool
+  holds, so one-off keys show in the latencies too.  Messages and keys
+  come from a fixed seed:
+
+    mvn -Pbench package
+    java -cp target/benchmarks.jar org.startpad.EnigmaServiceLoadTest [seconds] [levels]
+
+  levels is a comma separated list of client counts (default 1,4,16,64,256).
+
+ */
+
+package org.startpad;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+public class EnigmaServiceLoadTest
+    {
+    static final int KEYS = 16;
+    static final int MESSAGES = 256;
+    // Each message its own key
+    static final int DISTINCT_KEYS = 4096;
+    static final int MESSAGE_LENGTH = 256;
+
+    public static void main(String[] args) throws Exception
+        {
+        int cSeconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        String sLevels = args.length > 1 ? args[1] : "1,4,16,64,256";
+
+        EnigmaService service = new EnigmaService(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), new CompiledKeyPool());
+        service.start();
+
+        try
+            {
+            String sBase = "http://127.0.0.1:" + service.getAddress().getPort() + "/encode?";
+            Random random = new Random(EnigmaBenchmark.SEED);
+            String[] urls = urls(sBase, random, KEYS, MESSAGES);
+            String[] urlsDistinct = urls(sBase, random, DISTINCT_KEYS, DISTINCT_KEYS);
+
+            System.out.println("executor " + service.sExecutor + ", " + cSeconds + " s per level");
+
+            // Warm up: compile the few keys and let the JIT settle.
+            run(urls, 4, 2);
+
+            System.out.println(String.format("%8s %8s %12s %10s %10s %10s %10s", "clients", "keys",
+                    "requests/s", "p50 us", "p90 us", "p99 us", "max us"));
+            for (String sLevel : sLevels.split(","))
+                {
+                int cClients = Integer.parseInt(sLevel.trim());
+                level(urls, KEYS, cClients, cSeconds);
+                level(urlsDistinct, DISTINCT_KEYS, cClients, cSeconds);
+                }
+
+            System.out.println();
+            System.out.print(service.metrics());
+            }
+        finally
+            {
+            service.stop(0);
+            }
+        }
+
+    static void level(String[] urls, int cKeys, int cClients, int cSeconds) throws InterruptedException
+        {
+        LatencyHistogram latency = new LatencyHistogram();
+        double rate = run(urls, cClients, cSeconds, latency);
+
+        System.out.println(String.format("%8d %8d %12.0f %10.0f %10.0f %10.0f %10.0f", cClients, cKeys,
+                rate, latency.percentileNanos(0.50) / 1e3, latency.percentileNanos(0.90) / 1e3,
+                latency.percentileNanos(0.99) / 1e3, latency.maxNanos() / 1e3));
+        }
+
+    static double run(String[] urls, int cClients, int cSeconds)
+            throws InterruptedException
+        {
+        return run(urls, cClients, cSeconds, new LatencyHistogram());
+        }
+
+    /*
+     * cClients threads each sending requests back to back for cSeconds;
+     * returns requests per second.
+     */
+    static double run(final String[] urls, int cClients, int cSeconds, final LatencyHistogram latency)
+            throws InterruptedException
+        {
+        final long nsEnd = System.nanoTime() + cSeconds * 1000000000L;
+        final LongAdder cRequests = new LongAdder();
+        final LongAdder cFailures = new LongAdder();
+        Thread[] clients = new Thread[cClients];
+
+        long nsStart = System.nanoTime();
+        for (int iClient = 0; iClient < cClients; iClient++)
+            {
+            final Random random = new Random(EnigmaBenchmark.SEED + iClient);
+            clients[iClient] = new Thread(new Runnable()
+                {
+                public void run()
+                    {
+                    while (System.nanoTime() < nsEnd)
+                        {
+                        long nsRequest = System.nanoTime();
+                        try
+                            {
+                            get(urls[random.nextInt(urls.length)]);
+                            latency.record(System.nanoTime() - nsRequest);
+                            cRequests.increment();
+                            }
+                        catch (IOException e)
+                            {
+                            cFailures.increment();
+                            }
+                        }
+                    }
+                });
+            clients[iClient].start();
+            }
+
+        for (Thread client : clients)
+            client.join();
+
+        if (cFailures.sum() > 0)
+            System.out.println("  " + cFailures.sum() + " failed requests at " + cClients + " clients");
+        return cRequests.sum() / ((System.nanoTime() - nsStart) / 1e9);
+        }
+
+    static byte[] get(String sUrl) throws IOException
+        {
+        HttpURLConnection connection = (HttpURLConnection) new URL(sUrl).openConnection();
+        if (connection.getResponseCode() != 200)
+            throw new IOException("HTTP " + connection.getResponseCode());
+
+        InputStream in = connection.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int cb;
+        while ((cb = in.read(buffer)) >= 0)
+            out.write(buffer, 0, cb);
+        in.close();
+        return out.toByteArray();
+        }
+
+    /*
+     * cMessages request URLs spread over cKeys keys, each with its own start
+     * position.
+     */
+    static String[] urls(String sBase, Random random, int cKeys, int cMessages) throws IOException
+        {
+        String[] rotors = { "I", "II", "III", "IV", "V" };
+        String[] keys = new String[cKeys];
+
+        for (int k = 0; k < cKeys; k++)
+            keys[k] = "rotors=" + rotors[k % 5] + "," + rotors[(k + 1) % 5] + "," + rotors[(k + 3) % 5]
+                    + "&rings=" + letters(random, 3) + "&plugs=" + URLEncoder.encode("AZ BY CX", "UTF-8");
+
+        String[] urls = new String[cMessages];
+        for (int i = 0; i < cMessages; i++)
+            urls[i] = sBase + keys[cKeys == cMessages ? i : random.nextInt(cKeys)] + "&position="
+                    + letters(random, 3) + "&message=" + URLEncoder.encode(
+                            EnigmaBenchmark.message(MESSAGE_LENGTH, random.nextLong()), "UTF-8");
+        return urls;
+        }
+
+    static String letters(Random random, int cch)
+        {
+        char[] ach = new char[cch];
+        for (int i = 0; i < cch; i++)
+            ach[i] = (char) ('A' + random.nextInt(26));
+        return new String(ach);
+        }
+    }
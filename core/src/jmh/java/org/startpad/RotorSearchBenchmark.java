@@ -0,0 +1,56 @@
+/*
+  RotorSearchBenchmark.java - Single thread throughput of RotorSearch.
+
+  Each operation searches all 26^3 start positions of one rotor order, so
+  keys per second per core = CompiledEnigma.POSITIONS / (seconds per op).
+
+ */
+
+package org.startpad;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m" })
+public class RotorSearchBenchmark
+    {
+    @Param({ "100", "300" })
+    int length;
+
+    RotorSearch search;
+    Enigma.Settings order;
+
+    @Setup
+    public void setup()
+        {
+        Enigma machine = new Enigma(null);
+        machine.init(EnigmaBenchmark.settings(""));
+
+        this.search = new RotorSearch(
+                machine.encode(EnigmaBenchmark.message(this.length * 5 / 4, EnigmaBenchmark.SEED)), 10);
+        this.order = EnigmaBenchmark.settings("");
+        }
+
+    @Benchmark
+    public List<RotorSearch.Candidate> searchOrder()
+        {
+        return this.search.searchOrder(this.order);
+        }
+    }
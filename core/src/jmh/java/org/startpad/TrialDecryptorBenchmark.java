@@ -0,0 +1,78 @@
+/*
+  TrialDecryptorBenchmark.java - Vector vs scalar trial decryption.
+
+  Each operation decrypts one ciphertext from 676 start positions (every
+  middle and right rotor position), once with the per key scalar loop and
+  once with the vector kernel.
+
+ */
+
+package org.startpad;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms512m", "-Xmx512m", "--add-modules=jdk.incubator.vector" })
+public class TrialDecryptorBenchmark
+    {
+    static final int BATCH = 676;
+
+    @Param({ "100", "300" })
+    int length;
+
+    int[] cipher;
+    int[] starts = new int[BATCH];
+    int[] counts = new int[BATCH * 26];
+    TrialDecryptor scalar;
+    TrialDecryptor vector;
+
+    @Setup
+    public void setup()
+        {
+        CompiledEnigma machine = new CompiledEnigma(EnigmaBenchmark.settings(""));
+        String s = Enigma.groupLetters(machine.encode(
+                EnigmaBenchmark.message(this.length * 2, EnigmaBenchmark.SEED))).replace(" ", "");
+
+        this.cipher = new int[this.length];
+        for (int i = 0; i < this.length; i++)
+            this.cipher[i] = s.charAt(i) - 'A';
+
+        for (int i = 0; i < BATCH; i++)
+            this.starts[i] = 7 * 676 + i;
+
+        this.scalar = new TrialDecryptor(machine);
+        this.vector = TrialDecryptor.createVector(machine);
+        if (this.vector.kernel().equals("scalar"))
+            throw new IllegalStateException("Vector kernel not available");
+        }
+
+    @Benchmark
+    public int[] scalar()
+        {
+        this.scalar.histograms(this.cipher, this.starts, BATCH, this.counts);
+        return this.counts;
+        }
+
+    @Benchmark
+    public int[] vector()
+        {
+        this.vector.histograms(this.cipher, this.starts, BATCH, this.counts);
+        return this.counts;
+        }
+    }
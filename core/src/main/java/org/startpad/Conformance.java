@@ -0,0 +1,746 @@
+/*
+  Conformance.java - Differential conformance and throughput check of
+  every encoding engine.
+
+  Enigma.encodeChar, one character at a time, is the reference.  Each
+  engine - the bulk, streaming and byte forms of Enigma, machine copies
+  and seeks, CompiledEnigma, ParallelEncoder, BatchEncoder,
+  IncrementalEncoder and the trial decryption kernels - must give exactly
+  its output for:
+
+    - historical messages with published keys (known-answer vectors);
+    - random keys (M3 and M4 rotor orders, rewired UKW-D reflectors,
+      rings, positions and plugboards, in either case) and random
+      messages of upper and lower case letters, digits, punctuation,
+      Latin-1 and other characters (the byte engines, which take
+      Latin-1, get only Latin-1 text).
+
+  Then each engine's throughput is measured on one fixed message, and
+  compared with a baseline saved from an earlier run if one is given.
+  Exits with status 1 if any engine diverges or is slower than the
+  baseline by more than the threshold:
+
+    java -cp target/pocket-enigma-core-1.0-SNAPSHOT.jar org.startpad.Conformance \
+        [--keys 64] [--messages 32] [--seed 1940] [--seconds 1] \
+        [--baseline perf.properties] [--threshold 0.25] [--save perf.properties]
+
+  Add --add-modules jdk.incubator.vector (and the JVM warns) to include
+  the vector trial decryptor.
+
+ */
+
+package org.startpad;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+
+public class Conformance
+    {
+    // Keys typed or backspaced one at a time by the incremental engine
+    static final int KEYSTROKES = 32;
+
+    static final String[] ROTORS = { "I", "II", "III", "IV", "V", "VI", "VII", "VIII" };
+
+    // Message characters by class.  The Latin-1 ones leave out y diaeresis
+    // and micro, whose upper case is not Latin-1 (see Enigma.encode(byte[])).
+    static final String LETTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    static final String ASCII = "0123456789 .,;:!?-'\"()/\n\t";
+    static final String LATIN1 = "\u00E0\u00E9\u00EE\u00F5\u00FC\u00E7\u00F1\u00DF\u00C0\u00C9\u00CE"
+            + "\u00D5\u00DC\u00C7\u00D1\u00D7\u00F7\u00BF\u00A1\u00AB\u00BB\u00B0";
+    // Dotless i and long s are letters (I and S) to Enigma.encodeChar.
+    static final String WIDE = "\u0131\u017F\u03B1\u03A9\u20AC\u2014\u00FF\u00B5";
+
+    /*
+     * Historical messages: rotors, reflector, rings, position, plugs,
+     * ciphertext, plaintext.
+     */
+    static final String[][] VECTORS = {
+            // Enigma I, rings and position A: the usual first check.
+            { "I,II,III", "B", "AAA", "AAA", "", "AAAAA", "BDZGO" },
+            // Army message of 7 July 1941 (Operation Barbarossa): the message
+            // key BLA enciphered at the ground setting WXC, then part 1.
+            { "II,IV,V", "B", "BUL", "WXC", "AV BS CG DL FU HZ IN KM OW RX", "BLA", "KCH" },
+            { "II,IV,V", "B", "BUL", "BLA", "AV BS CG DL FU HZ IN KM OW RX",
+                    "EDPUD NRGYS ZRCXN UYTPO MRMBO FKTBZ REZKM LXLVE FGUEY SIOZV EQMIK UBPMM YLKLT TDEIS "
+                            + "MDICA GYKUA CTCDO MOHWX MUUIA UBSTS LRNBZ SZWNR FXWFY SSXJZ VIJHI DISHP RKLKA "
+                            + "YUPAD TXQSP INQMA TLPIF SVKDA SCTAC DPBOP VHJK",
+                    "AUFKL XABTE ILUNG XVONX KURTI NOWAX KURTI NOWAX NORDW ESTLX SEBEZ XSEBE ZXUAF FLIEG "
+                            + "ERSTR ASZER IQTUN GXDUB ROWKI XDUBR OWKIX OPOTS CHKAX OPOTS CHKAX UMXEI NSAQT "
+                            + "DREIN ULLXU HRANG ETRET ENXAN GRIFF XINFX RGTX" },
+            // Kriegsmarine M4 signal, Beta II IV I with the thin B reflector.
+            { "Beta,II,IV,I", "B-Thin", "AAAV", "VJNA", "AT BL DF GJ HM NW OP QY RZ VX",
+                    "NCZWVUSXPNYMINHZXMQXSFWXWLKJAHSHNMCOCCAKUQPMKCSMHKSEINJUSBLKIOSXCKUBHMLLXCSJUS"
+                            + "RRDVKOHULXWCCBGVLIYXEOAHXRHKKFVDREWEZLXOBAFGYUJQUKGRTVUKAMEURBVEKSUHHVOYHAB"
+                            + "CJWMAKLFKLMYFVNRIZRVVRTKOFDANJMOLBGFFLEOPRGTFLVRHOWOPBEKVWMUQFMPWPARMFHAGKXI"
+                            + "IBG",
+                    "VONVONJLOOKSJHFFTTTEINSEINSDREIZWOYYQNNSNEUNINHALTXXBEIANGRIFFUNTERWASSERGEDRU"
+                            + "ECKTYWABOSXLETZTERGEGNERSTANDNULACHTDREINULUHRMARQUANTONJOTANEUNACHTSEYHSDRE"
+                            + "IYZWOZWONULGRADYACHTSMYSTOSSENACHXEKNSVIERMBFAELLTYNNNNNNOOOVIERYSICHTEINSNU"
+                            + "LL" } };
+
+    /*
+     * One way of encoding a message from a key's start position.
+     */
+    abstract static class Engine
+        {
+        final String sName;
+        // Takes Latin-1 text only
+        final boolean fLatin1;
+        // Drops non-letters
+        final boolean fLettersOnly;
+
+        Engine(String sName, boolean fLatin1, boolean fLettersOnly)
+            {
+            this.sName = sName;
+            this.fLatin1 = fLatin1;
+            this.fLettersOnly = fLettersOnly;
+            }
+
+        abstract String encode(Enigma.Settings settings, String message) throws Exception;
+        }
+
+    final Random random;
+    final CompiledKeyPool pool = new CompiledKeyPool(8);
+    final BatchEncoder batch;
+    final ExecutorService executor = ParallelEncoder.defaultExecutor();
+    final List<Engine> engines = new ArrayList<Engine>();
+    final List<String> failures = new ArrayList<String>();
+    long cChecks;
+
+    Conformance(long seed)
+        {
+        this.random = new Random(seed);
+        this.batch = new BatchEncoder(this.pool, this.executor);
+        addEngines();
+        }
+
+    void addEngines()
+        {
+        this.engines.add(new Engine("enigma.encode", false, false)
+            {
+            String encode(Enigma.Settings settings, String message)
+                {
+                return machine(settings).encode(message);
+                }
+            });
+        this.engines.add(new Engine("enigma.appendable", false, false)
+            {
+            String encode(Enigma.Settings settings, String message) throws IOException
+                {
+                StringBuilder sb = new StringBuilder(message.length());
+                machine(settings).encode(message, sb);
+                return sb.toString();
+                }
+            });
+        this.engines.add(new Engine("enigma.charbuffer", false, false)
+            {
+            String encode(Enigma.Settings settings, String message)
+                {
+                // A wrapped String has no array, so this takes the per-char path.
+                CharBuffer in = CharBuffer.wrap(message);
+                CharBuffer out = CharBuffer.allocate(message.length());
+                machine(settings).encode(in, out);
+                return new String(out.array());
+                }
+            });
+        this.engines.add(new Engine("enigma.copy", false, false)
+            {
+            String encode(Enigma.Settings settings, String message)
+                {
+                int iSplit = message.length() / 2;
+                Enigma machine = machine(settings);
+                String sFirst = machine.encode(message.substring(0, iSplit));
+                return sFirst + machine.copy().encode(message.substring(iSplit));
+                }
+            });
+        this.engines.add(new Engine("enigma.seek", false, false)
+            {
+            String encode(Enigma.Settings settings, String message)
+                {
+                int iSplit = message.length() / 3;
+                int cLetters = 0;
+                for (int i = 0; i < iSplit; i++)
+                    if (Enigma.isLetter(message.charAt(i)))
+                        cLetters++;
+
+                Enigma machine = machine(settings);
+                machine.seek(cLetters);
+                String sRest = machine.encode(message.substring(iSplit));
+                return machine(settings).encode(message.substring(0, iSplit)) + sRest;
+                }
+            });
+        this.engines.add(new Engine("enigma.bytes", true, false)
+            {
+            String encode(Enigma.Settings settings, String message) throws IOException
+                {
+                byte[] bytes = message.getBytes("ISO-8859-1");
+                int cb = machine(settings).encode(bytes, 0, bytes.length, bytes, 0);
+                return new String(bytes, 0, cb, "ISO-8859-1");
+                }
+            });
+        this.engines.add(new Engine("enigma.bytes.letters", true, true)
+            {
+            String encode(Enigma.Settings settings, String message) throws IOException
+                {
+                byte[] bytes = message.getBytes("ISO-8859-1");
+                int cb = machine(settings).encode(bytes, 0, bytes.length, bytes, 0, true);
+                return new String(bytes, 0, cb, "ISO-8859-1");
+                }
+            });
+        this.engines.add(new Engine("enigma.bytebuffer.direct", true, false)
+            {
+            String encode(Enigma.Settings settings, String message) throws IOException
+                {
+                byte[] bytes = message.getBytes("ISO-8859-1");
+                ByteBuffer in = ByteBuffer.allocateDirect(bytes.length);
+                ByteBuffer out = ByteBuffer.allocateDirect(bytes.length);
+                in.put(bytes).flip();
+                machine(settings).encode(in, out);
+                out.flip();
+                out.get(bytes, 0, out.remaining());
+                return new String(bytes, "ISO-8859-1");
+                }
+            });
+        this.engines.add(new Engine("compiled.encode", false, false)
+            {
+            String encode(Enigma.Settings settings, String message)
+                {
+                return Conformance.this.pool.get(settings).encode(message);
+                }
+            });
+        this.engines.add(new Engine("parallel", false, false)
+            {
+            String encode(Enigma.Settings settings, String message)
+                {
+                // Small chunks, so most messages are split many times.
+                char[] ach = message.toCharArray();
+                ParallelEncoder.encode(machine(settings), ach, 0, ach.length, ach, 0,
+                        Conformance.this.executor, 97);
+                return new String(ach);
+                }
+            });
+        this.engines.add(new Engine("batch", false, false)
+            {
+            String encode(Enigma.Settings settings, String message)
+                {
+                BatchEncoder.Result result = Conformance.this.batch.encode(
+                        Collections.singletonList(new BatchEncoder.Job(settings, message)))[0];
+                if (result.isError())
+                    throw new IllegalArgumentException(result.error);
+                return result.output;
+                }
+            });
+        this.engines.add(new Engine("incremental", false, false)
+            {
+            String encode(Enigma.Settings settings, String message)
+                {
+                // Type the end of the first half a key at a time, edit a
+                // character back in the first quarter, backspace a few keys
+                // and cut back to the first quarter (checking what is left
+                // against a fresh encoding), retype a few keys, then paste
+                // the rest.
+                int cHalf = message.length() / 2;
+                int cQuarter = message.length() / 4;
+                int cKeys = Math.min(KEYSTROKES, cHalf - cQuarter);
+                IncrementalEncoder encoder = new IncrementalEncoder(settings);
+                for (int i = cHalf - cKeys; i <= cHalf; i++)
+                    encoder.update(message.substring(0, i));
+                if (message.length() >= 4)
+                    {
+                    StringBuilder sb = new StringBuilder(message.substring(0, cHalf));
+                    sb.setCharAt(cQuarter, 'Q');
+                    encoder.update(sb);
+                    }
+                for (int i = cHalf - 1; i >= cHalf - cKeys; i--)
+                    encoder.update(message.substring(0, i));
+                encoder.update(message.substring(0, cQuarter));
+                String sExpected = machine(settings).encode(message.substring(0, cQuarter));
+                if (!encoder.getOutput().toString().equals(sExpected))
+                    throw new IllegalStateException("Output after deleting back to " + cQuarter
+                            + " characters differs from a full encoding.");
+                for (int i = cQuarter + 1; i <= cQuarter + cKeys; i++)
+                    encoder.update(message.substring(0, i));
+                encoder.update(message);
+                return encoder.getOutput().toString();
+                }
+            });
+        }
+
+    static Enigma machine(Enigma.Settings settings)
+        {
+        Enigma machine = new Enigma(null);
+        machine.init(settings);
+        return machine;
+        }
+
+    /*
+     * Enigma.encodeChar a character at a time - letters only if asked.
+     */
+    static String reference(Enigma.Settings settings, String message, boolean fLettersOnly)
+        {
+        Enigma machine = machine(settings);
+        StringBuilder sb = new StringBuilder(message.length());
+        for (int i = 0; i < message.length(); i++)
+            {
+            char ch = message.charAt(i);
+            char chOut = machine.encodeChar(ch);
+            if (!fLettersOnly || Enigma.isLetter(ch))
+                sb.append(chOut);
+            }
+        return sb.toString();
+        }
+
+    void checkVectors()
+        {
+        for (String[] vector : VECTORS)
+            {
+            Enigma.Settings settings = new Enigma.Settings();
+            settings.rotors = vector[0].split(",");
+            settings.reflector = vector[1];
+            settings.rings = vector[2].toCharArray();
+            settings.position = vector[3].toCharArray();
+            settings.plugs = vector[4];
+
+            // Both ways round, as Enigma is reciprocal.
+            for (int i = 0; i < 2; i++)
+                {
+                String sIn = vector[5 + i];
+                String sExpected = vector[6 - i];
+                check("reference", settings, sIn, sExpected, reference(settings, sIn, false));
+                for (Engine engine : this.engines)
+                    if (!engine.fLettersOnly)
+                        check(engine, settings, sIn, sExpected);
+                }
+            }
+        }
+
+    void checkRandom(int cKeys, int cMessages)
+        {
+        for (int iKey = 0; iKey < cKeys; iKey++)
+            {
+            Enigma.Settings key = randomKey();
+            for (int iMessage = 0; iMessage < cMessages; iMessage++)
+                {
+                Enigma.Settings settings = withPosition(key, randomLetters(key.rotors.length));
+                String message = randomMessage(false);
+                String messageLatin1 = randomMessage(true);
+
+                for (Engine engine : this.engines)
+                    {
+                    String sIn = engine.fLatin1 ? messageLatin1 : message;
+                    check(engine, settings, sIn, reference(settings, sIn, engine.fLettersOnly));
+                    }
+                }
+            checkTrial(key, false);
+            checkTrial(key, true);
+            }
+        }
+
+    void check(Engine engine, Enigma.Settings settings, String sIn, String sExpected)
+        {
+        String sOut;
+        try
+            {
+            sOut = engine.encode(settings, sIn);
+            }
+        catch (Exception e)
+            {
+            sOut = "threw " + e;
+            }
+        check(engine.sName, settings, sIn, sExpected, sOut);
+        }
+
+    void check(String sEngine, Enigma.Settings settings, String sIn, String sExpected, String sOut)
+        {
+        this.cChecks++;
+        if (sExpected.equals(sOut))
+            return;
+
+        int i = 0;
+        while (i < sExpected.length() && i < sOut.length() && sExpected.charAt(i) == sOut.charAt(i))
+            i++;
+        this.failures.add(sEngine + " diverges at " + i + " of " + sIn.length() + " characters, key "
+                + describe(settings) + (sOut.startsWith("threw ") ? ": " + sOut : ""));
+        }
+
+    /*
+     * Letter counts of trial decryptions from random start positions,
+     * against the reference decrypting from the same positions.
+     */
+    void checkTrial(Enigma.Settings key, boolean fVector)
+        {
+        CompiledEnigma compiled = this.pool.get(key);
+        TrialDecryptor decryptor = fVector ? TrialDecryptor.createVector(compiled)
+                : new TrialDecryptor(compiled);
+        if (fVector && decryptor.kernel().equals("scalar"))
+            return;
+
+        int[] cipher = new int[1 + this.random.nextInt(300)];
+        for (int i = 0; i < cipher.length; i++)
+            cipher[i] = this.random.nextInt(26);
+        // Not a whole number of vector lanes, so the tail is checked too.
+        int cStarts = 37;
+        int[] starts = new int[cStarts];
+        for (int k = 0; k < cStarts; k++)
+            starts[k] = this.random.nextInt(CompiledEnigma.POSITIONS);
+        int[] counts = new int[cStarts * 26];
+        decryptor.histograms(cipher, starts, cStarts, counts);
+
+        int cFixed = key.rotors.length - 3;
+        for (int k = 0; k < cStarts; k++)
+            {
+            char[] position = key.position.clone();
+            position[cFixed] = Enigma.chFromI(starts[k] / 676);
+            position[cFixed + 1] = Enigma.chFromI(starts[k] / 26 % 26);
+            position[cFixed + 2] = Enigma.chFromI(starts[k] % 26);
+            Enigma machine = machine(withPosition(key, position));
+
+            int[] expected = new int[26];
+            for (int i = 0; i < cipher.length; i++)
+                expected[machine.encodeChar(Enigma.chFromI(cipher[i])) - 'A']++;
+
+            this.cChecks++;
+            for (int i = 0; i < 26; i++)
+                if (counts[k * 26 + i] != expected[i])
+                    {
+                    this.failures.add("trial " + decryptor.kernel() + " miscounts "
+                            + Enigma.chFromI(i) + " from " + new String(position) + ", key "
+                            + describe(key));
+                    break;
+                    }
+            }
+        }
+
+    Enigma.Settings randomKey()
+        {
+        Random random = this.random;
+        List<String> rotors = new ArrayList<String>();
+        Collections.addAll(rotors, ROTORS);
+        Collections.shuffle(rotors, random);
+
+        Enigma.Settings settings = new Enigma.Settings();
+        if (random.nextInt(4) == 0)
+            {
+            settings.rotors = new String[] { random.nextBoolean() ? "Beta" : "Gamma",
+                    rotors.get(0), rotors.get(1), rotors.get(2) };
+            settings.reflector = random.nextBoolean() ? "B-Thin" : "C-Thin";
+            }
+        else
+            {
+            settings.rotors = new String[] { rotors.get(0), rotors.get(1), rotors.get(2) };
+            int iReflector = random.nextInt(8);
+            settings.reflector = iReflector == 0 ? "D:" + randomPairs(12, "JY")
+                    : iReflector % 2 == 0 ? "B" : "C";
+            }
+
+        settings.rings = randomLetters(settings.rotors.length);
+        settings.position = randomLetters(settings.rotors.length);
+        if (random.nextInt(8) == 0)
+            {
+            settings.rings = new String(settings.rings).toLowerCase().toCharArray();
+            settings.position = new String(settings.position).toLowerCase().toCharArray();
+            }
+        settings.plugs = randomPairs(random.nextInt(14), "");
+        if (random.nextBoolean())
+            settings.plugs = settings.plugs.toLowerCase().replace(" ", "");
+        return settings;
+        }
+
+    static Enigma.Settings withPosition(Enigma.Settings key, char[] position)
+        {
+        Enigma.Settings settings = new Enigma.Settings();
+        settings.rotors = key.rotors;
+        settings.reflector = key.reflector;
+        settings.rings = key.rings;
+        settings.plugs = key.plugs;
+        settings.position = position;
+        return settings;
+        }
+
+    char[] randomLetters(int c)
+        {
+        char[] letters = new char[c];
+        for (int i = 0; i < c; i++)
+            letters[i] = Enigma.chFromI(this.random.nextInt(26));
+        return letters;
+        }
+
+    /*
+     * c letter pairs, e.g. "AV BS CG", avoiding the letters in sExcept.
+     */
+    String randomPairs(int c, String sExcept)
+        {
+        List<Character> letters = new ArrayList<Character>();
+        for (char ch = 'A'; ch <= 'Z'; ch++)
+            if (sExcept.indexOf(ch) < 0)
+                letters.add(ch);
+        Collections.shuffle(letters, this.random);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < c; i++)
+            sb.append(i == 0 ? "" : " ").append(letters.get(2 * i)).append(letters.get(2 * i + 1));
+        return sb.toString();
+        }
+
+    /*
+     * Mostly short messages, some long enough for many parallel chunks.
+     */
+    String randomMessage(boolean fLatin1)
+        {
+        Random random = this.random;
+        int iSize = random.nextInt(10);
+        int cch = iSize < 6 ? random.nextInt(80) : iSize < 9 ? random.nextInt(2000)
+                : random.nextInt(20000);
+
+        char[] ach = new char[cch];
+        for (int i = 0; i < cch; i++)
+            {
+            int iClass = random.nextInt(20);
+            String sClass = iClass < 14 ? LETTERS : iClass < 17 ? ASCII
+                    : iClass < 19 || fLatin1 ? LATIN1 : WIDE;
+            ach[i] = sClass.charAt(random.nextInt(sClass.length()));
+            }
+        return new String(ach);
+        }
+
+    static String describe(Enigma.Settings settings)
+        {
+        StringBuilder sb = new StringBuilder(settings.reflector);
+        for (String rotor : settings.rotors)
+            sb.append('-').append(rotor);
+        return sb.append(" rings ").append(settings.rings).append(" at ").append(settings.position)
+                .append(" plugs \"").append(settings.plugs).append('"').toString();
+        }
+
+    /*
+     * Characters per second for each engine, encoding the same message
+     * under one key for (after a warm up) about cSeconds each.
+     */
+    Properties throughput(double cSeconds)
+        {
+        Enigma.Settings settings = new Enigma.Settings();
+        settings.rotors = new String[] { "II", "IV", "V" };
+        settings.rings = "BUL".toCharArray();
+        settings.plugs = "AV BS CG DL FU HZ IN KM OW RX";
+        String message = randomMessage(true);
+        while (message.length() < 1 << 16)
+            message += randomMessage(true);
+
+        Properties rates = new Properties();
+        for (Engine engine : this.engines)
+            rates.setProperty(engine.sName, format(rate(engine, settings, message, cSeconds)));
+
+        int[] cipher = new int[256];
+        int[] starts = new int[256];
+        for (int i = 0; i < cipher.length; i++)
+            cipher[i] = this.random.nextInt(26);
+        for (int k = 0; k < starts.length; k++)
+            starts[k] = this.random.nextInt(CompiledEnigma.POSITIONS);
+        CompiledEnigma compiled = this.pool.get(settings);
+        TrialDecryptor[] decryptors = { new TrialDecryptor(compiled),
+                TrialDecryptor.createVector(compiled) };
+        for (TrialDecryptor decryptor : decryptors)
+            if (rates.getProperty("trial." + decryptor.kernel().split(" ")[0]) == null)
+                rates.setProperty("trial." + decryptor.kernel().split(" ")[0],
+                        format(trialRate(decryptor, cipher, starts, cSeconds)));
+        return rates;
+        }
+
+    static final int ROUNDS = 3;
+
+    /*
+     * Best of a few timed rounds after a warm up, so one pause for the
+     * collector or the JIT does not count as a regression.
+     */
+    static double rate(Engine engine, Enigma.Settings settings, String message, double cSeconds)
+        {
+        try
+            {
+            long nsWarm = System.nanoTime() + (long) (cSeconds * 3e8);
+            while (System.nanoTime() < nsWarm)
+                engine.encode(settings, message);
+
+            double rateBest = 0;
+            for (int iRound = 0; iRound < ROUNDS; iRound++)
+                {
+                long cch = 0;
+                long nsStart = System.nanoTime();
+                long nsEnd = nsStart + (long) (cSeconds * 1e9 / ROUNDS);
+                long ns;
+                do
+                    {
+                    cch += engine.encode(settings, message).length();
+                    ns = System.nanoTime();
+                    }
+                while (ns < nsEnd);
+                rateBest = Math.max(rateBest, cch * 1e9 / (ns - nsStart));
+                }
+            return rateBest;
+            }
+        catch (Exception e)
+            {
+            return 0;
+            }
+        }
+
+    static double trialRate(TrialDecryptor decryptor, int[] cipher, int[] starts, double cSeconds)
+        {
+        int[] counts = new int[starts.length * 26];
+        long nsWarm = System.nanoTime() + (long) (cSeconds * 3e8);
+        while (System.nanoTime() < nsWarm)
+            decryptor.histograms(cipher, starts, starts.length, counts);
+
+        double rateBest = 0;
+        for (int iRound = 0; iRound < ROUNDS; iRound++)
+            {
+            long cLetters = 0;
+            long nsStart = System.nanoTime();
+            long nsEnd = nsStart + (long) (cSeconds * 1e9 / ROUNDS);
+            long ns;
+            do
+                {
+                decryptor.histograms(cipher, starts, starts.length, counts);
+                cLetters += (long) cipher.length * starts.length;
+                ns = System.nanoTime();
+                }
+            while (ns < nsEnd);
+            rateBest = Math.max(rateBest, cLetters * 1e9 / (ns - nsStart));
+            }
+        return rateBest;
+        }
+
+    static String format(double rate)
+        {
+        return String.valueOf(Math.round(rate));
+        }
+
+    /*
+     * Engines measured slower than the baseline by more than threshold (a
+     * fraction); engines missing from the baseline are not compared.
+     */
+    void compare(Properties rates, Properties baseline, double threshold)
+        {
+        for (String sEngine : rates.stringPropertyNames())
+            {
+            String sBase = baseline.getProperty(sEngine);
+            if (sBase == null)
+                continue;
+            double rate = Double.parseDouble(rates.getProperty(sEngine));
+            double rateBase = Double.parseDouble(sBase);
+            if (rate < rateBase * (1 - threshold))
+                this.failures.add(String.format("%s regressed: %.1f M/s against %.1f M/s in the baseline",
+                        sEngine, rate / 1e6, rateBase / 1e6));
+            }
+        }
+
+    public static void main(String[] args) throws IOException
+        {
+        int cKeys = 64;
+        int cMessages = 32;
+        long seed = 1940;
+        double cSeconds = 1;
+        double threshold = 0.25;
+        String sBaseline = null;
+        String sSave = null;
+
+        for (int i = 0; i < args.length; i++)
+            {
+            String arg = args[i];
+            String sValue = i + 1 < args.length ? args[i + 1] : null;
+            if (sValue == null)
+                usage("Missing value for " + arg);
+            i++;
+
+            if (arg.equals("--keys"))
+                cKeys = Integer.parseInt(sValue);
+            else if (arg.equals("--messages"))
+                cMessages = Integer.parseInt(sValue);
+            else if (arg.equals("--seed"))
+                seed = Long.parseLong(sValue);
+            else if (arg.equals("--seconds"))
+                cSeconds = Double.parseDouble(sValue);
+            else if (arg.equals("--threshold"))
+                threshold = Double.parseDouble(sValue);
+            else if (arg.equals("--baseline"))
+                sBaseline = sValue;
+            else if (arg.equals("--save"))
+                sSave = sValue;
+            else
+                usage("Unknown option: " + arg);
+            }
+
+        Conformance conformance = new Conformance(seed);
+        long nsStart = System.nanoTime();
+        conformance.checkVectors();
+        conformance.checkRandom(cKeys, cMessages);
+        System.out.println(String.format("%d engines, %d checks (%d keys x %d messages, seed %d): "
+                + "%d failures (%.1f s)", conformance.engines.size(), conformance.cChecks, cKeys,
+                cMessages, seed, conformance.failures.size(), (System.nanoTime() - nsStart) / 1e9));
+
+        if (cSeconds > 0)
+            {
+            Properties rates = conformance.throughput(cSeconds);
+            Properties baseline = new Properties();
+            if (sBaseline != null)
+                {
+                InputStream in = new FileInputStream(sBaseline);
+                try
+                    {
+                    baseline.load(in);
+                    }
+                finally
+                    {
+                    in.close();
+                    }
+                conformance.compare(rates, baseline, threshold);
+                }
+
+            System.out.println(String.format("%-26s %12s %12s", "engine", "M chars/s", "baseline"));
+            for (String sEngine : new TreeSet<String>(rates.stringPropertyNames()))
+                {
+                String sBase = baseline.getProperty(sEngine);
+                System.out.println(String.format("%-26s %12.1f %12s", sEngine,
+                        Double.parseDouble(rates.getProperty(sEngine)) / 1e6,
+                        sBase == null ? "-" : String.format("%.1f", Double.parseDouble(sBase) / 1e6)));
+                }
+
+            if (sSave != null)
+                {
+                OutputStream out = new FileOutputStream(new File(sSave));
+                try
+                    {
+                    rates.store(out, "Conformance throughput, characters per second");
+                    }
+                finally
+                    {
+                    out.close();
+                    }
+                }
+            }
+
+        for (String sFailure : conformance.failures)
+            System.out.println("FAIL " + sFailure);
+        System.exit(conformance.failures.isEmpty() ? 0 : 1);
+        }
+
+    static void usage(String sError)
+        {
+        System.err.println("Conformance: " + sError);
+        System.err.println("Usage: Conformance [--keys n] [--messages n] [--seed n] [--seconds s]"
+                + " [--baseline file] [--threshold fraction] [--save file]");
+        System.exit(2);
+        }
+    }
@@ -0,0 +1,407 @@
+/*
+  EnigmaService.java - Local HTTP encryption service.
+
+  Serves the engine over HTTP with the JDK's built-in server, one virtual
+  thread per request where the JVM has them (21+) and a cached thread pool
+  otherwise.  Keys come from a shared CompiledKeyPool: a key used for
+  enough letters (by one request or many) is compiled once and each
+  request then only sets a position; until then, and for one-off keys,
+  requests encode with a plain Enigma.
+
+    GET|POST /encode   Key fields as query parameters - rotors (I,II,III
+                       or Beta,I,II,III), reflector, rings, position,
+                       plugs - and the message as the message parameter
+                       (in the query or a form body) or as the whole
+                       request body (UTF-8).  Responds with the
+                       encoding as text/plain.  /decode is the same
+                       (the machine is reciprocal).
+    POST /batch        One request per line, each a query string with the
+                       key fields and message.  Responds with one line per
+                       request, in order: the encoding, or "ERROR <reason>".
+                       Run through a BatchEncoder, so lines sharing a key
+                       are encoded together and keys run in parallel.
+    GET /metrics       Request, letter and error counts, throughput since
+                       start, pool hit rate and request latency percentiles.
+
+  Invalid keys get 400 with the reason.  Binds to the loopback interface
+  by default - this is an internal service.
+
+    java -cp pocket-enigma-core.jar org.startpad.EnigmaService [port]
+
+ */
+
+package org.startpad;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class EnigmaService
+    {
+    public static final int DEFAULT_PORT = 8080;
+    static final int BACKLOG = 1024;
+
+    static
+        {
+        /*
+         * The JDK server writes headers and body separately; without
+         * TCP_NODELAY, Nagle and delayed ACKs add ~40 ms to every
+         * keep-alive request.  Read once, when the first server is created.
+         */
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+
+    HttpServer server;
+    ExecutorService executor;
+    String sExecutor;
+    CompiledKeyPool pool;
+    BatchEncoder batchEncoder;
+
+    long nsStart;
+    LongAdder cRequests = new LongAdder();
+    LongAdder cMessages = new LongAdder();
+    LongAdder cErrors = new LongAdder();
+    LongAdder cLetters = new LongAdder();
+    LatencyHistogram latency = new LatencyHistogram();
+
+    public EnigmaService(int port) throws IOException
+        {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                new CompiledKeyPool());
+        }
+
+    public EnigmaService(InetSocketAddress address, CompiledKeyPool pool) throws IOException
+        {
+        this.pool = pool;
+        this.batchEncoder = new BatchEncoder(pool, ParallelEncoder.defaultExecutor());
+        this.server = HttpServer.create(address, BACKLOG);
+
+        Handler encode = new Handler()
+            {
+            String handle(HttpExchange exchange, Map<String, String> params) throws IOException
+                {
+                if (!params.containsKey("message"))
+                    {
+                    String sBody = new String(readBody(exchange), StandardCharsets.UTF_8);
+                    Map<String, String> form = isForm(exchange) ? parseQuery(sBody) : null;
+                    if (form != null && form.containsKey("message"))
+                        params.putAll(form);
+                    else
+                        params.put("message", sBody);
+                    }
+                return encode(params);
+                }
+            };
+        this.server.createContext("/encode", encode);
+        this.server.createContext("/decode", encode);
+
+        this.server.createContext("/batch", new Handler()
+            {
+            String handle(HttpExchange exchange, Map<String, String> params) throws IOException
+                {
+                return batch(new String(readBody(exchange), StandardCharsets.UTF_8));
+                }
+            });
+
+        this.server.createContext("/metrics", new Handler()
+            {
+            String handle(HttpExchange exchange, Map<String, String> params)
+                {
+                return metrics();
+                }
+            });
+        }
+
+    public void start()
+        {
+        this.executor = newExecutor();
+        this.server.setExecutor(this.executor);
+        this.nsStart = System.nanoTime();
+        this.server.start();
+        }
+
+    /*
+     * Stop accepting, give requests in flight up to cSecondsDelay to finish.
+     */
+    public void stop(int cSecondsDelay)
+        {
+        this.server.stop(cSecondsDelay);
+        if (this.executor != null)
+            this.executor.shutdown();
+        }
+
+    public InetSocketAddress getAddress()
+        {
+        return this.server.getAddress();
+        }
+
+    /*
+     * Encoding of params' message under the key in params.
+     */
+    String encode(Map<String, String> params)
+        {
+        Enigma.Settings settings = settings(params);
+        String message = params.get("message");
+        CompiledEnigma compiled = this.pool.getIfWorthwhile(settings, message.length());
+        String sOut;
+
+        if (compiled != null)
+            sOut = compiled.encode(message);
+        else
+            {
+            Enigma machine = new Enigma(null);
+            machine.init(settings);
+            sOut = machine.encode(message);
+            }
+
+        this.cMessages.increment();
+        this.cLetters.add(message.length());
+        return sOut;
+        }
+
+    /*
+     * Encode each line of body (a query string) and return the results a
+     * line each, in order.  See BatchEncoder.
+     */
+    String batch(String body)
+        {
+        String[] lines = body.split("\r?\n", -1);
+        int cLines = lines.length;
+        if (cLines > 0 && lines[cLines - 1].isEmpty())
+            cLines--;
+
+        List<BatchEncoder.Job> jobs = new ArrayList<BatchEncoder.Job>(cLines);
+        for (int i = 0; i < cLines; i++)
+            {
+            Map<String, String> params = parseQuery(lines[i]);
+            String message = params.containsKey("message") ? params.get("message") : "";
+            jobs.add(new BatchEncoder.Job(settings(params), message));
+            }
+
+        StringBuilder sb = new StringBuilder();
+        for (BatchEncoder.Result result : this.batchEncoder.encode(jobs))
+            {
+            if (result.isError())
+                sb.append("ERROR ").append(result.error);
+            else
+                {
+                sb.append(result.output);
+                this.cMessages.increment();
+                this.cLetters.add(result.output.length());
+                }
+            sb.append('\n');
+            }
+        return sb.toString();
+        }
+
+    String metrics()
+        {
+        double sec = Math.max((System.nanoTime() - this.nsStart) / 1e9, 1e-9);
+        long cRequests = this.cRequests.sum();
+        long cLetters = this.cLetters.sum();
+        long cLookups = this.pool.hits() + this.pool.misses() + this.pool.uncompiled();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("executor ").append(this.sExecutor).append('\n');
+        sb.append("uptime_seconds ").append(String.format("%.1f", sec)).append('\n');
+        sb.append("requests ").append(cRequests).append('\n');
+        sb.append("messages ").append(this.cMessages.sum()).append('\n');
+        sb.append("errors ").append(this.cErrors.sum()).append('\n');
+        sb.append("chars ").append(cLetters).append('\n');
+        sb.append("requests_per_second ").append(String.format("%.1f", cRequests / sec)).append('\n');
+        sb.append("chars_per_second ").append(String.format("%.1f", cLetters / sec)).append('\n');
+        sb.append("pool_keys ").append(this.pool.size()).append('\n');
+        sb.append("pool_hit_rate ")
+                .append(String.format("%.3f", cLookups == 0 ? 0 : (double) this.pool.hits() / cLookups))
+                .append('\n');
+        sb.append("pool_uncompiled ").append(this.pool.uncompiled()).append('\n');
+        sb.append("latency_us_mean ").append(String.format("%.1f", this.latency.meanNanos() / 1e3)).append('\n');
+        sb.append("latency_us_p50 ").append(this.latency.percentileNanos(0.50) / 1000).append('\n');
+        sb.append("latency_us_p90 ").append(this.latency.percentileNanos(0.90) / 1000).append('\n');
+        sb.append("latency_us_p99 ").append(this.latency.percentileNanos(0.99) / 1000).append('\n');
+        sb.append("latency_us_max ").append(this.latency.maxNanos() / 1000).append('\n');
+        return sb.toString();
+        }
+
+    /*
+     * Settings from request parameters; missing fields keep their defaults.
+     */
+    static Enigma.Settings settings(Map<String, String> params)
+        {
+        Enigma.Settings settings = new Enigma.Settings();
+        String s;
+
+        if ((s = params.get("rotors")) != null)
+            settings.rotors = s.trim().split("[,\\s]+");
+        if ((s = params.get("reflector")) != null)
+            settings.reflector = s.trim();
+        if ((s = params.get("rings")) != null)
+            settings.rings = letters(s);
+        if ((s = params.get("position")) != null)
+            settings.position = letters(s);
+        if ((s = params.get("plugs")) != null)
+            settings.plugs = s;
+        return settings;
+        }
+
+    static char[] letters(String s)
+        {
+        return s.toUpperCase().replaceAll("[^A-Z]", "").toCharArray();
+        }
+
+    static Map<String, String> parseQuery(String query)
+        {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null || query.isEmpty())
+            return params;
+
+        for (String pair : query.split("&"))
+            {
+            int ich = pair.indexOf('=');
+            try
+                {
+                if (ich < 0)
+                    params.put(URLDecoder.decode(pair, "UTF-8"), "");
+                else
+                    params.put(URLDecoder.decode(pair.substring(0, ich), "UTF-8"),
+                            URLDecoder.decode(pair.substring(ich + 1), "UTF-8"));
+                }
+            catch (UnsupportedEncodingException e)
+                {
+                throw new IllegalStateException(e);
+                }
+            }
+        return params;
+        }
+
+    static byte[] readBody(HttpExchange exchange) throws IOException
+        {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int cb;
+
+        while ((cb = in.read(buffer)) >= 0)
+            out.write(buffer, 0, cb);
+        return out.toByteArray();
+        }
+
+    static boolean isForm(HttpExchange exchange)
+        {
+        String sType = exchange.getRequestHeaders().getFirst("Content-Type");
+        return sType != null && sType.startsWith("application/x-www-form-urlencoded");
+        }
+
+    /*
+     * Virtual thread per request where the JDK has them (looked up
+     * reflectively, as the core module is built for 17), else a cached
+     * pool of daemon threads.
+     */
+    ExecutorService newExecutor()
+        {
+        try
+            {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            this.sExecutor = "virtual-threads";
+            return executor;
+            }
+        catch (Exception e)
+            {
+            this.sExecutor = "cached-thread-pool";
+            return Executors.newCachedThreadPool(new ThreadFactory()
+                {
+                public Thread newThread(Runnable r)
+                    {
+                    Thread thread = new Thread(r, "enigma-service");
+                    thread.setDaemon(true);
+                    return thread;
+                    }
+                });
+            }
+        }
+
+    /*
+     * Parses the query string, times the request and writes the text result
+     * or error.
+     */
+    abstract class Handler implements HttpHandler
+        {
+        abstract String handle(HttpExchange exchange, Map<String, String> params)
+                throws IOException;
+
+        public void handle(HttpExchange exchange) throws IOException
+            {
+            long nsStart = System.nanoTime();
+            int status = 200;
+            String sResponse;
+
+            try
+                {
+                String sMethod = exchange.getRequestMethod();
+                if (!sMethod.equals("GET") && !sMethod.equals("POST"))
+                    {
+                    status = 405;
+                    sResponse = "Method not allowed: " + sMethod + "\n";
+                    }
+                else
+                    {
+                    Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                    sResponse = handle(exchange, params);
+                    }
+                }
+            catch (IllegalArgumentException e)
+                {
+                status = 400;
+                sResponse = e.getMessage() + "\n";
+                }
+            catch (RuntimeException e)
+                {
+                status = 500;
+                sResponse = "Internal error: " + e + "\n";
+                }
+
+            if (status != 200)
+                EnigmaService.this.cErrors.increment();
+
+            byte[] response = sResponse.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, response.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(response);
+            out.close();
+
+            EnigmaService.this.cRequests.increment();
+            EnigmaService.this.latency.record(System.nanoTime() - nsStart);
+            }
+        }
+
+    public static void main(String[] args) throws IOException
+        {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        EnigmaService service = new EnigmaService(port);
+
+        service.start();
+        System.err.println("enigma: serving on http://" + service.getAddress().getHostString() + ":"
+                + service.getAddress().getPort() + "/ (" + service.sExecutor + ")");
+        }
+    }
@@ -0,0 +1,123 @@
+/*
+  LatencyHistogram.java - Lock-free latency histogram.
+
+  Records durations in nanoseconds into log-linear buckets (four per power
+  of two, so a percentile is reported to within about 25%) held in one
+  AtomicLongArray.  Recording is a few atomic adds and never allocates,
+  so every request can be timed.
+
+ */
+
+package org.startpad;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram
+    {
+    static final int SUB_BUCKETS = 4;
+
+    AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+    LongAdder cRecorded = new LongAdder();
+    LongAdder nsTotal = new LongAdder();
+    AtomicLong nsMax = new AtomicLong();
+
+    public void record(long ns)
+        {
+        if (ns < 0)
+            ns = 0;
+
+        this.counts.incrementAndGet(bucket(ns));
+        this.cRecorded.increment();
+        this.nsTotal.add(ns);
+
+        long nsMax = this.nsMax.get();
+        while (ns > nsMax && !this.nsMax.compareAndSet(nsMax, ns))
+            nsMax = this.nsMax.get();
+        }
+
+    public long count()
+        {
+        return this.cRecorded.sum();
+        }
+
+    public long maxNanos()
+        {
+        return this.nsMax.get();
+        }
+
+    public double meanNanos()
+        {
+        long c = count();
+        return c == 0 ? 0 : (double) this.nsTotal.sum() / c;
+        }
+
+    /*
+     * Upper bound of the bucket holding the p'th quantile (0 < p <= 1), in
+     * nanoseconds; 0 if nothing has been recorded.
+     */
+    public long percentileNanos(double p)
+        {
+        long[] snapshot = new long[this.counts.length()];
+        long cTotal = 0;
+
+        for (int i = 0; i < snapshot.length; i++)
+            {
+            snapshot[i] = this.counts.get(i);
+            cTotal += snapshot[i];
+            }
+
+        if (cTotal == 0)
+            return 0;
+
+        long cTarget = (long) Math.ceil(p * cTotal);
+        long cSeen = 0;
+        for (int i = 0; i < snapshot.length; i++)
+            {
+            cSeen += snapshot[i];
+            if (cSeen >= cTarget)
+                return Math.min(upperBound(i), maxNanos());
+            }
+        return maxNanos();
+        }
+
+    public void reset()
+        {
+        for (int i = 0; i < this.counts.length(); i++)
+            this.counts.set(i, 0);
+        this.cRecorded.reset();
+        this.nsTotal.reset();
+        this.nsMax.set(0);
+        }
+
+    /*
+     * e.g. "n=1000 mean=52.1us p50=48.0us p90=64.0us p99=128.0us max=301.2us"
+     */
+    public String summary()
+        {
+        return String.format("n=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus",
+                count(), meanNanos() / 1e3, percentileNanos(0.50) / 1e3,
+                percentileNanos(0.90) / 1e3, percentileNanos(0.99) / 1e3, maxNanos() / 1e3);
+        }
+
+    static int bucket(long ns)
+        {
+        if (ns < SUB_BUCKETS)
+            return (int) ns;
+
+        int log = 63 - Long.numberOfLeadingZeros(ns);
+        int sub = (int) (ns >> (log - 2)) & (SUB_BUCKETS - 1);
+        return log * SUB_BUCKETS + sub;
+        }
+
+    static long upperBound(int bucket)
+        {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        int log = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1L) << (log - 2)) - 1;
+        }
+    }
@@ -0,0 +1,79 @@
+/*
+  VectorTrialDecryptor.java - SIMD trial decryption with the Vector API.
+
+  Runs one start position per vector lane.  For each cipher letter every
+  lane gathers its stepping successor from the step table, gathers its
+  output letter from a per-letter column of the substitution table, and
+  bumps its own histogram bucket with a gather/add/scatter (each lane owns
+  a different 26 entry block of counts, so the scatter never collides).
+
+  Only built by the core module and only usable on a JVM started with
+  --add-modules jdk.incubator.vector; use TrialDecryptor.createVector().
+
+ */
+
+package org.startpad;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorTrialDecryptor extends TrialDecryptor
+    {
+    // 512-bit int gather/scatter crashes C2 on JDK 17, so stay at 256 bits.
+    static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED.length() > 8
+            ? IntVector.SPECIES_256 : IntVector.SPECIES_PREFERRED;
+
+    int[][] columns = new int[26][CompiledEnigma.POSITIONS];
+    int[] laneBase = new int[SPECIES.length()];
+    int[] map = new int[SPECIES.length()];
+
+    public VectorTrialDecryptor(CompiledEnigma machine)
+        {
+        super(machine);
+
+        for (int iPos = 0; iPos < CompiledEnigma.POSITIONS; iPos++)
+            for (int i = 0; i < 26; i++)
+                this.columns[i][iPos] = machine.table[iPos * 26 + i];
+
+        for (int lane = 0; lane < this.laneBase.length; lane++)
+            this.laneBase[lane] = lane * 26;
+        }
+
+    public String kernel()
+        {
+        return "vector " + SPECIES.vectorBitSize() + "-bit x" + SPECIES.length();
+        }
+
+    public void histograms(int[] cipher, int[] starts, int cStarts, int[] counts)
+        {
+        int cLanes = SPECIES.length();
+        int cVector = cStarts - cStarts % cLanes;
+        int[] next = this.machine.next;
+        int[] map = this.map;
+        IntVector vLaneBase = IntVector.fromArray(SPECIES, this.laneBase, 0);
+
+        for (int i = 0; i < cVector * 26; i++)
+            counts[i] = 0;
+
+        for (int k = 0; k < cVector; k += cLanes)
+            {
+            IntVector vPos = IntVector.fromArray(SPECIES, starts, k);
+            int offCounts = k * 26;
+
+            for (int i = 0; i < cipher.length; i++)
+                {
+                vPos.intoArray(map, 0);
+                vPos = IntVector.fromArray(SPECIES, next, 0, map, 0);
+
+                vPos.intoArray(map, 0);
+                IntVector vOut = IntVector.fromArray(SPECIES, this.columns[cipher[i]], 0, map, 0);
+
+                vOut.add(vLaneBase).intoArray(map, 0);
+                IntVector.fromArray(SPECIES, counts, offCounts, map, 0).add(1)
+                        .intoArray(counts, offCounts, map, 0);
+                }
+            }
+
+        histogramsScalar(cipher, starts, cVector, cStarts, counts);
+        }
+    }
@@ -0,0 +1,274 @@
+/*
+  BatchEncoder.java - Encode many messages under many keys.
+
+  Jobs (Settings and message) are grouped by key - rotor order,
+  reflector, rings and plugboard; start positions may differ - so each
+  key's tables are set up once per group rather than once per message.
+  Groups with enough letters to pay for it use a compiled key from a
+  CompiledKeyPool (kept across batches); smaller groups share one Enigma
+  whose key comes from the EnigmaKey caches.  Groups run on an executor,
+  largest first.
+
+  Results come back in input order, or are streamed to a Listener as they
+  complete.  A job with an invalid key (unknown rotor, ring or position
+  not a letter, odd or reused plugs, ...) or no message gets a Result
+  carrying the error; the rest of the batch carries on.
+
+ */
+
+package org.startpad;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class BatchEncoder
+    {
+    // Roughly the letters a CompiledEnigma must encode to repay its build
+    static final int COMPILE_THRESHOLD = 1 << 17;
+
+    public static class Job
+        {
+        public Enigma.Settings settings;
+        public String message;
+
+        public Job(Enigma.Settings settings, String message)
+            {
+            this.settings = settings;
+            this.message = message;
+            }
+        }
+
+    public static class Result
+        {
+        public int index;
+        public String output;
+        public String error;
+
+        Result(int index, String output, String error)
+            {
+            this.index = index;
+            this.output = output;
+            this.error = error;
+            }
+
+        public boolean isError()
+            {
+            return this.error != null;
+            }
+
+        public String toString()
+            {
+            return this.index + ": " + (isError() ? "ERROR " + this.error : this.output);
+            }
+        }
+
+    /*
+     * Called on the thread that called encode(), once per job, in
+     * completion order.
+     */
+    public interface Listener
+        {
+        public void Callback(Result result);
+        }
+
+    CompiledKeyPool pool;
+    ExecutorService executor;
+
+    public BatchEncoder()
+        {
+        this(new CompiledKeyPool(), ParallelEncoder.defaultExecutor());
+        }
+
+    public BatchEncoder(CompiledKeyPool pool, ExecutorService executor)
+        {
+        this.pool = pool;
+        this.executor = executor;
+        }
+
+    /*
+     * Results indexed as the jobs.
+     */
+    public Result[] encode(List<Job> jobs)
+        {
+        final Result[] results = new Result[jobs.size()];
+
+        encode(jobs, new Listener()
+            {
+            public void Callback(Result result)
+                {
+                results[result.index] = result;
+                }
+            });
+        return results;
+        }
+
+    /*
+     * Pass each job's result to listener as it completes; returns when
+     * all have been passed.
+     */
+    public void encode(List<Job> jobs, Listener listener)
+        {
+        Map<String, List<Integer>> byKey = new LinkedHashMap<String, List<Integer>>();
+        final LinkedBlockingQueue<Result> completed = new LinkedBlockingQueue<Result>();
+        int cPending = 0;
+
+        for (int i = 0; i < jobs.size(); i++)
+            {
+            String sKey;
+            try
+                {
+                Job job = jobs.get(i);
+                if (job == null || job.settings == null || job.message == null)
+                    throw new IllegalArgumentException("Missing settings or message.");
+                sKey = CompiledKeyPool.keyString(job.settings);
+                }
+            catch (RuntimeException e)
+                {
+                listener.Callback(new Result(i, null, errorString(e)));
+                continue;
+                }
+
+            List<Integer> group = byKey.get(sKey);
+            if (group == null)
+                {
+                group = new ArrayList<Integer>();
+                byKey.put(sKey, group);
+                }
+            group.add(i);
+            cPending++;
+            }
+
+        List<Group> groups = new ArrayList<Group>(byKey.size());
+        for (List<Integer> indices : byKey.values())
+            groups.add(new Group(jobs, indices, completed));
+
+        Collections.sort(groups, new Comparator<Group>()
+            {
+            public int compare(Group a, Group b)
+                {
+                return a.cLetters < b.cLetters ? 1 : a.cLetters > b.cLetters ? -1 : 0;
+                }
+            });
+
+        for (Group group : groups)
+            this.executor.execute(group);
+
+        try
+            {
+            for (; cPending > 0; cPending--)
+                listener.Callback(completed.take());
+            }
+        catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+            }
+        }
+
+    /*
+     * Message of an exception, or its class name if it has none.
+     */
+    static String errorString(Throwable e)
+        {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+        }
+
+    /*
+     * All the jobs for one key.
+     */
+    class Group implements Runnable
+        {
+        List<Job> jobs;
+        List<Integer> indices;
+        LinkedBlockingQueue<Result> completed;
+        long cLetters;
+        // Results posted so far (jobs are done in the order of indices)
+        int cDelivered;
+
+        Group(List<Job> jobs, List<Integer> indices, LinkedBlockingQueue<Result> completed)
+            {
+            this.jobs = jobs;
+            this.indices = indices;
+            this.completed = completed;
+
+            for (int i : indices)
+                this.cLetters += jobs.get(i).message.length();
+            }
+
+        public void run()
+            {
+            String sFailure = "Not encoded.";
+            try
+                {
+                if (this.cLetters >= COMPILE_THRESHOLD)
+                    runCompiled();
+                else
+                    runEnigma();
+                }
+            catch (Error e)
+                {
+                sFailure = e.toString();
+                throw e;
+                }
+            finally
+                {
+                // encode() waits for a result per job, so never leave one out.
+                while (this.cDelivered < this.indices.size())
+                    deliver(new Result(this.indices.get(this.cDelivered), null, sFailure));
+                }
+            }
+
+        private void deliver(Result result)
+            {
+            this.completed.add(result);
+            this.cDelivered++;
+            }
+
+        private void runCompiled()
+            {
+            CompiledEnigma machine = null;
+
+            for (int i : this.indices)
+                {
+                Job job = this.jobs.get(i);
+                try
+                    {
+                    if (machine == null)
+                        machine = BatchEncoder.this.pool.get(job.settings);
+                    else
+                        machine = machine.copy(job.settings);
+                    deliver(new Result(i, machine.encode(job.message), null));
+                    }
+                catch (RuntimeException e)
+                    {
+                    deliver(new Result(i, null, errorString(e)));
+                    }
+                }
+            }
+
+        private void runEnigma()
+            {
+            Enigma machine = new Enigma(null);
+
+            for (int i : this.indices)
+                {
+                Job job = this.jobs.get(i);
+                try
+                    {
+                    machine.init(job.settings);
+                    deliver(new Result(i, machine.encode(job.message), null));
+                    }
+                catch (RuntimeException e)
+                    {
+                    deliver(new Result(i, null, errorString(e)));
+                    }
+                }
+            }
+        }
+    }
@@ -0,0 +1,399 @@
+/*
+  Bombe.java - Turing-Welchman Bombe simulation for crib-based key recovery.
+
+  A crib (guessed plaintext) placed against the ciphertext gives a menu: a
+  graph whose nodes are letters and whose edges join each crib letter to
+  its cipher letter, labelled with the key press at which it was
+  enciphered.  For a trial rotor order and start position each edge is a
+  known scrambler permutation (rotors and reflector only - the plugboard
+  is what we are looking for).
+
+  The test register hypothesises that the most connected menu letter L is
+  steckered to some letter.  Hypotheses "x is steckered to y" are bits in
+  a 26x26 matrix; each live hypothesis implies, through every menu edge
+  (x, z, S), that z is steckered to S(y), and through the diagonal board
+  that y is steckered to x.  The closure is run to a fixed point on
+  int bitsets.  As on the real machine a position "stops" when exactly
+  one or exactly 25 of L's 26 hypotheses are live - one gives the stecker
+  directly, 25 means the single dead one is the true stecker.
+
+  Every rotor order (and reflector) from Enigma.rotorsBox is a separate
+  task on the executor.  Rings are held fixed (AAA unless set); the
+  positions reported are for those rings.
+
+ */
+
+package org.startpad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class Bombe
+    {
+    static final int FULL = (1 << 26) - 1;
+
+    /*
+     * The letter-pair graph from a crib placed at an offset in the
+     * ciphertext.
+     */
+    static public class Menu
+        {
+        public final int offset;
+        public final int cEdges;
+        public final int cLetters;
+        public final int cLoops;
+        public final int iTestLetter;
+
+        int[] edgeFrom;
+        int[] edgeTo;
+        int[][] adjacent;
+        int[][] adjacentEdge;
+
+        public Menu(String ciphertext, String crib, int offset)
+            {
+            this(indices(ciphertext), indices(crib), offset);
+            }
+
+        /*
+         * From letter indices (0-25) - offset counts letters of cipher.
+         */
+        Menu(byte[] cipher, byte[] crib, int offset)
+            {
+            if (crib.length == 0)
+                throw new IllegalArgumentException("Crib has no letters.");
+            if (offset < 0 || offset + crib.length > cipher.length)
+                throw new IllegalArgumentException("Crib does not fit at offset " + offset);
+
+            this.offset = offset;
+            this.cEdges = crib.length;
+            this.edgeFrom = new int[this.cEdges];
+            this.edgeTo = new int[this.cEdges];
+
+            int[] cAdjacent = new int[26];
+            for (int i = 0; i < this.cEdges; i++)
+                {
+                this.edgeFrom[i] = crib[i];
+                this.edgeTo[i] = cipher[offset + i];
+                if (this.edgeFrom[i] == this.edgeTo[i])
+                    throw new IllegalArgumentException("Crib letter " + Enigma.chFromI(crib[i])
+                            + " would encipher to itself at " + (offset + i));
+                cAdjacent[this.edgeFrom[i]]++;
+                cAdjacent[this.edgeTo[i]]++;
+                }
+
+            this.adjacent = new int[26][];
+            this.adjacentEdge = new int[26][];
+            int iBest = 0;
+            int cLetters = 0;
+            for (int ch = 0; ch < 26; ch++)
+                {
+                this.adjacent[ch] = new int[cAdjacent[ch]];
+                this.adjacentEdge[ch] = new int[cAdjacent[ch]];
+                if (cAdjacent[ch] > 0)
+                    cLetters++;
+                if (cAdjacent[ch] > cAdjacent[iBest])
+                    iBest = ch;
+                cAdjacent[ch] = 0;
+                }
+
+            for (int i = 0; i < this.cEdges; i++)
+                {
+                int a = this.edgeFrom[i];
+                int b = this.edgeTo[i];
+                this.adjacent[a][cAdjacent[a]] = b;
+                this.adjacentEdge[a][cAdjacent[a]++] = i;
+                this.adjacent[b][cAdjacent[b]] = a;
+                this.adjacentEdge[b][cAdjacent[b]++] = i;
+                }
+
+            this.cLetters = cLetters;
+            this.iTestLetter = iBest;
+            this.cLoops = this.cEdges - this.cLetters + components();
+            }
+
+        private int components()
+            {
+            int[] parent = new int[26];
+            for (int i = 0; i < 26; i++)
+                parent[i] = i;
+
+            int cComponents = this.cLetters;
+            for (int i = 0; i < this.cEdges; i++)
+                {
+                int a = root(parent, this.edgeFrom[i]);
+                int b = root(parent, this.edgeTo[i]);
+                if (a != b)
+                    {
+                    parent[a] = b;
+                    cComponents--;
+                    }
+                }
+            return cComponents;
+            }
+
+        private static int root(int[] parent, int i)
+            {
+            while (parent[i] != i)
+                i = parent[i] = parent[parent[i]];
+            return i;
+            }
+
+        public String toString()
+            {
+            String s = "Menu at " + this.offset + ": " + this.cEdges + " edges, "
+                    + this.cLetters + " letters, " + this.cLoops + " loops, test letter "
+                    + Enigma.chFromI(this.iTestLetter) + "\n";
+            for (int i = 0; i < this.cEdges; i++)
+                s += "  " + (i + 1) + ": " + Enigma.chFromI(this.edgeFrom[i]) + "-"
+                        + Enigma.chFromI(this.edgeTo[i]) + "\n";
+            return s;
+            }
+        }
+
+    /*
+     * A rotor order and start position at which the menu is consistent,
+     * with the steckers it implies.
+     */
+    static public class Stop
+        {
+        public final String[] rotors;
+        public final String reflector;
+        public final char[] rings;
+        public final char[] position;
+        public final String plugs;
+
+        Stop(Enigma.Settings order, int iPos, String plugs)
+            {
+            this.rotors = order.rotors.clone();
+            this.reflector = order.reflector;
+            this.rings = order.rings.clone();
+            this.position = new char[] { Enigma.chFromI(iPos / 676),
+                    Enigma.chFromI(iPos / 26 % 26), Enigma.chFromI(iPos % 26) };
+            this.plugs = plugs;
+            }
+
+        public Enigma.Settings toSettings()
+            {
+            Enigma.Settings settings = new Enigma.Settings();
+            settings.rotors = this.rotors.clone();
+            settings.reflector = this.reflector;
+            settings.rings = this.rings.clone();
+            settings.position = this.position.clone();
+            settings.plugs = this.plugs;
+            return settings;
+            }
+
+        public String toString()
+            {
+            return this.reflector + "-" + this.rotors[0] + "-" + this.rotors[1] + "-"
+                    + this.rotors[2] + " " + new String(this.position) + " Rings: "
+                    + new String(this.rings) + " Plugs: " + this.plugs;
+            }
+        }
+
+    Menu menu;
+    char[] rings = new char[] { 'A', 'A', 'A' };
+    volatile boolean fCancelled;
+
+    public Bombe(String ciphertext, String crib, int offset)
+        {
+        this.menu = new Menu(ciphertext, crib, offset);
+        }
+
+    /*
+     * From a ready made menu - e.g. CribDragger.Placement.menu().
+     */
+    public Bombe(Menu menu)
+        {
+        this.menu = menu;
+        }
+
+    public Menu getMenu()
+        {
+        return this.menu;
+        }
+
+    public void setRings(char[] rings)
+        {
+        this.rings = rings.clone();
+        }
+
+    public void cancel()
+        {
+        this.fCancelled = true;
+        }
+
+    public List<Stop> run()
+        {
+        return run(ParallelEncoder.defaultExecutor());
+        }
+
+    public List<Stop> run(ExecutorService executor)
+        {
+        List<Callable<List<Stop>>> tasks = new ArrayList<Callable<List<Stop>>>();
+
+        for (final Enigma.Settings order : Enigma.rotorOrders(this.rings))
+            tasks.add(new Callable<List<Stop>>()
+                {
+                public List<Stop> call()
+                    {
+                    return runOrder(order);
+                    }
+                });
+
+        List<Stop> stops = new ArrayList<Stop>();
+        try
+            {
+            for (Future<List<Stop>> result : executor.invokeAll(tasks))
+                stops.addAll(result.get());
+            }
+        catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted during bombe run", e);
+            }
+        catch (ExecutionException e)
+            {
+            throw new RuntimeException("Bombe run failed", e.getCause());
+            }
+        return stops;
+        }
+
+    /*
+     * Every start position for one rotor order and reflector.
+     */
+    List<Stop> runOrder(Enigma.Settings order)
+        {
+        List<Stop> stops = new ArrayList<Stop>();
+        Menu menu = this.menu;
+        CompiledEnigma scrambler = new CompiledEnigma(order);
+        Enigma stepper = new Enigma(null);
+        stepper.init(order);
+
+        int[] edgeTable = new int[menu.cEdges];
+        int[] rows = new int[26];
+        int[] stack = new int[26 * 26];
+        int[] position = new int[3];
+
+        for (int iPos = 0; iPos < CompiledEnigma.POSITIONS && !this.fCancelled; iPos++)
+            {
+            position[0] = iPos / 676;
+            position[1] = iPos / 26 % 26;
+            position[2] = iPos % 26;
+            stepper.advancePosition(position, menu.offset);
+
+            int iCur = CompiledEnigma.indexFromPosition(position);
+            for (int i = 0; i < menu.cEdges; i++)
+                {
+                iCur = scrambler.next[iCur];
+                edgeTable[i] = iCur * 26;
+                }
+
+            int live = closure(scrambler.table, edgeTable, rows, stack, menu.iTestLetter, 0);
+            int cLive = Integer.bitCount(live);
+            int iStecker;
+
+            if (cLive == 1)
+                iStecker = 0;
+            else if (cLive == 25)
+                {
+                iStecker = Integer.numberOfTrailingZeros(~live & FULL);
+                if (Integer.bitCount(closure(scrambler.table, edgeTable, rows, stack,
+                        menu.iTestLetter, iStecker)) != 1)
+                    continue;
+                }
+            else
+                continue;
+
+            stops.add(new Stop(order, iPos, plugs(rows)));
+            }
+        return stops;
+        }
+
+    /*
+     * Energise "test letter is steckered to iStecker" and propagate to a
+     * fixed point.  Leaves every live hypothesis in rows and returns the
+     * test letter's row; stops early once that row is full.
+     */
+    int closure(byte[] table, int[] edgeTable, int[] rows, int[] stack, int iTest, int iStecker)
+        {
+        Menu menu = this.menu;
+        int cStack = 0;
+
+        for (int i = 0; i < 26; i++)
+            rows[i] = 0;
+
+        rows[iTest] = 1 << iStecker;
+        rows[iStecker] |= 1 << iTest;
+        stack[cStack++] = iTest * 26 + iStecker;
+        if (iTest != iStecker)
+            stack[cStack++] = iStecker * 26 + iTest;
+
+        while (cStack > 0)
+            {
+            int h = stack[--cStack];
+            int x = h / 26;
+            int y = h % 26;
+
+            int[] adjacent = menu.adjacent[x];
+            int[] adjacentEdge = menu.adjacentEdge[x];
+            for (int i = 0; i < adjacent.length; i++)
+                {
+                int z = adjacent[i];
+                int w = table[edgeTable[adjacentEdge[i]] + y];
+
+                if ((rows[z] & (1 << w)) != 0)
+                    continue;
+
+                // Diagonal board: z~w and w~z are the same hypothesis.
+                rows[z] |= 1 << w;
+                stack[cStack++] = z * 26 + w;
+                if (z != w)
+                    {
+                    rows[w] |= 1 << z;
+                    stack[cStack++] = w * 26 + z;
+                    }
+
+                if (rows[iTest] == FULL)
+                    return FULL;
+                }
+            }
+        return rows[iTest];
+        }
+
+    /*
+     * Plugboard pairs implied by a consistent closure - letters with a
+     * single live partner other than themselves.
+     */
+    static String plugs(int[] rows)
+        {
+        String s = "";
+        for (int x = 0; x < 26; x++)
+            {
+            if (Integer.bitCount(rows[x]) != 1)
+                continue;
+            int y = Integer.numberOfTrailingZeros(rows[x]);
+            if (y > x && rows[y] == 1 << x)
+                s += (s.length() > 0 ? " " : "") + Enigma.chFromI(x) + Enigma.chFromI(y);
+            }
+        return s;
+        }
+
+    static String letters(String s)
+        {
+        return s.toUpperCase().replaceAll("[^A-Z]", "");
+        }
+
+    static byte[] indices(String s)
+        {
+        s = letters(s);
+        byte[] indices = new byte[s.length()];
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = (byte) (s.charAt(i) - 'A');
+        return indices;
+        }
+    }
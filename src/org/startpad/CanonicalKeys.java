@@ -0,0 +1,322 @@
+/*
+  CanonicalKeys.java - One representative of each set of keys that
+  encipher a message of a given length identically.
+
+  What the machine does at a key press depends only on the positions of
+  the rotor cores (window letter less ring setting) and on which rotors
+  step; stepping is decided by the window letters at the notches.  So a
+  ring and position moved together leave the output alone as long as the
+  window never reaches, or stops reaching, a notch:
+
+    - The left rotor (and the Greek wheel of an M4) never carries
+      anything, so its ring setting never matters - the canonical key
+      has ring A there, whatever the message length.
+    - If the right rotor never carries the middle one during the
+      message, its ring can be moved to the first setting (from A) at
+      which the shifted windows still miss its notch.
+    - Likewise the middle rotor's ring if it never double steps; it may
+      still be carried forward by the right rotor.
+
+  Plugs are left as they are.  canonical() maps a key to its
+  representative, and enumerate() lists only the representatives of a
+  rotor order, so searches over rings and positions try each distinct
+  message key once.  For an M3 order that divides the 26^6 ring and
+  position settings by 26 for long messages, by about 230 for 25
+  letters and by over 900 for the six letters of a doubled indicator.
+
+ */
+
+package org.startpad;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class CanonicalKeys
+    {
+    public interface Visitor
+        {
+        /*
+         * Called with each canonical key in turn - the same Settings object
+         * each time, with new rings and position.
+         */
+        public void Callback(Enigma.Settings settings);
+        }
+
+    final int cLetters;
+
+    public CanonicalKeys(int cLetters)
+        {
+        if (cLetters < 0)
+            throw new IllegalArgumentException("Message length cannot be negative: " + cLetters);
+        this.cLetters = cLetters;
+        }
+
+    /*
+     * The representative of the key (a new Settings; the argument is not
+     * changed).
+     */
+    public Enigma.Settings canonical(Enigma.Settings settings)
+        {
+        int cFixed = settings.rotors.length - 3;
+        if (cFixed < 0 || cFixed > 1 || settings.rings.length != settings.rotors.length
+                || settings.position.length != settings.rotors.length)
+            throw new IllegalArgumentException("Expected three or four rotors, rings and positions.");
+
+        int[] rings = new int[settings.rotors.length];
+        int[] position = new int[settings.rotors.length];
+        for (int i = 0; i < rings.length; i++)
+            {
+            rings[i] = Enigma.iFromCh(settings.rings[i]);
+            position[i] = Enigma.iFromCh(settings.position[i]);
+            }
+
+        // Greek wheel and left rotor: the core position is all that counts.
+        for (int i = 0; i <= cFixed; i++)
+            {
+            position[i] = (position[i] - rings[i] + 26) % 26;
+            rings[i] = 0;
+            }
+
+        byte[] notchesMiddle = RotorCatalog.rotor(settings.rotors[cFixed + 1]).atNotch;
+        byte[] notchesRight = RotorCatalog.rotor(settings.rotors[cFixed + 2]).atNotch;
+        int motion = motion(notchesMiddle, notchesRight, position[cFixed + 1], position[cFixed + 2]);
+
+        for (int r = 1; r <= 2; r++)
+            {
+            int cWindows = r == 1 ? middleWindows(motion) : rightWindows(motion);
+            if (cWindows < 0)
+                continue;
+            int core = (position[cFixed + r] - rings[cFixed + r] + 26) % 26;
+            int ring = firstRing(r == 1 ? notchesMiddle : notchesRight, core, cWindows);
+            rings[cFixed + r] = ring;
+            position[cFixed + r] = (core + ring) % 26;
+            }
+
+        Enigma.Settings canonical = new Enigma.Settings();
+        canonical.rotors = settings.rotors.clone();
+        canonical.reflector = settings.reflector;
+        canonical.plugs = settings.plugs;
+        canonical.rings = new char[rings.length];
+        canonical.position = new char[rings.length];
+        for (int i = 0; i < rings.length; i++)
+            {
+            canonical.rings[i] = Enigma.chFromI(rings[i]);
+            canonical.position[i] = Enigma.chFromI(position[i]);
+            }
+        return canonical;
+        }
+
+    public boolean isCanonical(Enigma.Settings settings)
+        {
+        Enigma.Settings canonical = canonical(settings);
+        return Arrays.equals(canonical.rings, upper(settings.rings))
+                && Arrays.equals(canonical.position, upper(settings.position));
+        }
+
+    private static char[] upper(char[] letters)
+        {
+        return new String(letters).toUpperCase().toCharArray();
+        }
+
+    /*
+     * How the middle and right rotors move over the message, from their
+     * window positions: the number of windows of the middle rotor looked
+     * at for a double step (or -1 if it double steps) in the low half,
+     * and of the right rotor for a carry (or -1 if it carries) in the
+     * high half.
+     */
+    int motion(byte[] notchesMiddle, byte[] notchesRight, int middle, int right)
+        {
+        // Every window of both rotors has been looked at by then.
+        int cPresses = Math.min(this.cLetters, 27 * 26 + 1);
+        int cMiddle = 0;
+        int cSteps = 0;
+        boolean fDouble = false;
+        boolean fCarry = false;
+
+        for (int t = 0; t < cPresses && !(fDouble && fCarry); t++)
+            {
+            int fAtMiddle = notchesMiddle[middle];
+            int fAtRight = notchesRight[right];
+            fDouble |= fAtMiddle != 0;
+            fCarry |= fAtRight != 0;
+
+            cMiddle = Math.min(cSteps + 1, 26);
+            if ((fAtMiddle | fAtRight) != 0)
+                {
+                middle = (middle + 1) % 26;
+                cSteps++;
+                }
+            right = (right + 1) % 26;
+            }
+
+        int cRight = Math.min(this.cLetters, 26);
+        return (fCarry ? -1 : cRight) << 16 | (fDouble ? 0xFFFF : cMiddle);
+        }
+
+    static int middleWindows(int motion)
+        {
+        return (short) motion;
+        }
+
+    static int rightWindows(int motion)
+        {
+        return motion >> 16;
+        }
+
+    /*
+     * First ring setting at which a rotor whose core starts at core shows
+     * no notch in its next cWindows windows.
+     */
+    static int firstRing(byte[] notches, int core, int cWindows)
+        {
+        for (int ring = 0; ring < 26; ring++)
+            {
+            boolean fClear = true;
+            for (int j = 0; j < cWindows && fClear; j++)
+                fClear = notches[(core + ring + j) % 26] == 0;
+            if (fClear)
+                return ring;
+            }
+        throw new IllegalStateException("No clear ring for " + cWindows + " windows.");
+        }
+
+    /*
+     * Each canonical key of a rotor order (its rotors, reflector and
+     * plugs - the rings and position are ignored) in turn, if visitor is
+     * not null.  Returns how many there are.
+     */
+    public long enumerate(Enigma.Settings order, Visitor visitor)
+        {
+        int cRotors = order.rotors.length;
+        int cFixed = cRotors - 3;
+        if (cFixed < 0 || cFixed > 1)
+            throw new IllegalArgumentException("Expected three or four rotors.");
+        byte[] notchesMiddle = RotorCatalog.rotor(order.rotors[cFixed + 1]).atNotch;
+        byte[] notchesRight = RotorCatalog.rotor(order.rotors[cFixed + 2]).atNotch;
+
+        Enigma.Settings settings = new Enigma.Settings();
+        settings.rotors = order.rotors.clone();
+        settings.reflector = order.reflector;
+        settings.plugs = order.plugs;
+        settings.rings = new char[cRotors];
+        settings.position = new char[cRotors];
+        Arrays.fill(settings.rings, 'A');
+
+        // Greek wheel and left rotor positions, with rings at A.
+        int cFree = cFixed == 0 ? 26 : 26 * 26;
+        long cKeys = 0;
+
+        for (int middle = 0; middle < 26; middle++)
+            for (int right = 0; right < 26; right++)
+                {
+                int motion = motion(notchesMiddle, notchesRight, middle, right);
+                int cWindowsMiddle = middleWindows(motion);
+                int cWindowsRight = rightWindows(motion);
+
+                for (int ringMiddle = 0; ringMiddle < 26; ringMiddle++)
+                    {
+                    if (cWindowsMiddle >= 0 && ringMiddle != firstRing(notchesMiddle,
+                            (middle - ringMiddle + 26) % 26, cWindowsMiddle))
+                        continue;
+
+                    for (int ringRight = 0; ringRight < 26; ringRight++)
+                        {
+                        if (cWindowsRight >= 0 && ringRight != firstRing(notchesRight,
+                                (right - ringRight + 26) % 26, cWindowsRight))
+                            continue;
+
+                        cKeys += cFree;
+                        if (visitor == null)
+                            continue;
+
+                        settings.rings[cFixed + 1] = Enigma.chFromI(ringMiddle);
+                        settings.rings[cFixed + 2] = Enigma.chFromI(ringRight);
+                        settings.position[cFixed + 1] = Enigma.chFromI(middle);
+                        settings.position[cFixed + 2] = Enigma.chFromI(right);
+                        for (int fixed = 0; fixed < cFree; fixed++)
+                            {
+                            if (cFixed != 0)
+                                settings.position[0] = Enigma.chFromI(fixed / 26);
+                            settings.position[cFixed] = Enigma.chFromI(fixed % 26);
+                            visitor.Callback(settings);
+                            }
+                        }
+                    }
+                }
+        return cKeys;
+        }
+
+    public long count(Enigma.Settings order)
+        {
+        return enumerate(order, null);
+        }
+
+    /*
+     * Ring and position settings of the rotor order per canonical key.
+     */
+    public double reduction(Enigma.Settings order)
+        {
+        return Math.pow(26, 2 * order.rotors.length) / count(order);
+        }
+
+    /*
+     * Report the reduction for some message lengths, and check that
+     * random keys encipher a message just as their representatives do:
+     *
+     *   java org.startpad.CanonicalKeys 1,6,25,100,1000 [I,II,III [keys]]
+     */
+    public static void main(String[] args)
+        {
+        if (args.length < 1 || args.length > 3)
+            {
+            System.err.println("Usage: CanonicalKeys lengths [rotors [keys]]");
+            System.exit(2);
+            }
+
+        Enigma.Settings order = new Enigma.Settings();
+        if (args.length > 1)
+            order.rotors = args[1].toUpperCase().split(",");
+        if (order.rotors.length == 4)
+            order.reflector = "B-Thin";
+        int cKeys = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        Random random = new Random(1940);
+
+        for (String sLength : args[0].split(","))
+            {
+            CanonicalKeys keys = new CanonicalKeys(Integer.parseInt(sLength.trim()));
+            long nsStart = System.nanoTime();
+            long cCanonical = keys.count(order);
+            System.out.println(String.format("%d letters: %d canonical keys, %.1fx fewer (%.0f ms)",
+                    keys.cLetters, cCanonical, keys.reduction(order),
+                    (System.nanoTime() - nsStart) / 1e6));
+
+            char[] message = new char[keys.cLetters];
+            for (int i = 0; i < cKeys; i++)
+                {
+                Enigma.Settings settings = new Enigma.Settings();
+                settings.rotors = order.rotors;
+                settings.reflector = order.reflector;
+                settings.rings = new char[order.rotors.length];
+                settings.position = new char[order.rotors.length];
+                for (int r = 0; r < order.rotors.length; r++)
+                    {
+                    settings.rings[r] = Enigma.chFromI(random.nextInt(26));
+                    settings.position[r] = Enigma.chFromI(random.nextInt(26));
+                    }
+                for (int j = 0; j < message.length; j++)
+                    message[j] = Enigma.chFromI(random.nextInt(26));
+
+                Enigma.Settings canonical = keys.canonical(settings);
+                Enigma machine = new Enigma(null);
+                machine.init(settings);
+                String sExpected = machine.encode(new String(message));
+                machine.init(canonical);
+                if (!machine.encode(new String(message)).equals(sExpected) || !keys.isCanonical(canonical))
+                    throw new IllegalStateException("Rings " + new String(settings.rings) + " at "
+                            + new String(settings.position) + " differ from their representative.");
+                }
+            }
+        System.exit(0);
+        }
+    }
@@ -0,0 +1,162 @@
+/*
+  CompiledEnigma.java - Table-driven Enigma for a fixed key.
+
+  For a given Settings the complete substitution (plugboard, rings, rotors
+  and reflector folded together) is precomputed for every one of the 26^3
+  rotor positions, along with the stepping successor of each position.
+  Encoding a letter is then one step-table advance and one array lookup.
+
+  The tables depend on the rotor order, reflector, rings and plugs - not on
+  the start position - so a compiled key can be re-used for any number of
+  messages by calling reset() or setPosition().  On a four rotor machine
+  the Greek wheel, which never steps, stays where the Settings put it.
+
+ */
+
+package org.startpad;
+
+public class CompiledEnigma
+    {
+    public static final int POSITIONS = 26 * 26 * 26;
+
+    Enigma.Settings settings;
+    byte[] table = new byte[POSITIONS * 26];
+    int[] next = new int[POSITIONS];
+    int iPosition;
+    long nsBuild;
+
+    public CompiledEnigma(Enigma.Settings settings)
+        {
+        long nsStart = System.nanoTime();
+
+        Enigma machine = new Enigma(null);
+        machine.init(settings);
+        this.settings = machine.settings;
+
+        int[] position = machine.position;
+        for (int iPos = 0; iPos < POSITIONS; iPos++)
+            {
+            position[0] = iPos / 676;
+            position[1] = iPos / 26 % 26;
+            position[2] = iPos % 26;
+
+            int base = iPos * 26;
+            for (int i = 0; i < 26; i++)
+                this.table[base + i] = (byte) machine.scramble(i, position);
+
+            machine.incrementRotors();
+            this.next[iPos] = indexFromPosition(position);
+            }
+
+        reset();
+
+        this.nsBuild = System.nanoTime() - nsStart;
+        }
+
+    private CompiledEnigma()
+        {
+        }
+
+    /*
+     * Machine sharing this one's tables (which are never written after
+     * construction) but with its own position, starting from settings - which
+     * must have the same key as this machine; only the start position of the
+     * stepping rotors may differ.  For handing one compiled key to several
+     * threads.
+     */
+    public CompiledEnigma copy(Enigma.Settings settings)
+        {
+        CompiledEnigma copy = new CompiledEnigma();
+
+        copy.settings = settings;
+        copy.table = this.table;
+        copy.next = this.next;
+        copy.nsBuild = this.nsBuild;
+        copy.reset();
+        return copy;
+        }
+
+    /*
+     * Return to the start position given in the Settings.
+     */
+    public void reset()
+        {
+        int cFixed = this.settings.position.length - 3;
+
+        this.iPosition = 0;
+        for (int i = 0; i < 3; i++)
+            this.iPosition = this.iPosition * 26
+                    + Enigma.iFromCh(this.settings.position[cFixed + i]);
+        }
+
+    public void setPosition(int[] position)
+        {
+        this.iPosition = indexFromPosition(position);
+        }
+
+    public int[] getPosition()
+        {
+        return new int[] { this.iPosition / 676, this.iPosition / 26 % 26, this.iPosition % 26 };
+        }
+
+    public String sPosition()
+        {
+        int[] position = getPosition();
+        String s = "";
+        for (int i = 0; i < 3; i++)
+            s += Enigma.chFromI(position[i]);
+        return s;
+        }
+
+    public char encodeChar(char ch)
+        {
+        if (ch < 256 && Enigma.LATIN1_LETTERS[ch] >= 0)
+            return (char) ('A' + encodeIndex(Enigma.LATIN1_LETTERS[ch]));
+
+        ch = Character.toUpperCase(ch);
+
+        if (ch < 'A' || ch > 'Z')
+            return ch;
+
+        return (char) ('A' + encodeIndex(ch - 'A'));
+        }
+
+    /*
+     * Step and encrypt letter index i.
+     */
+    int encodeIndex(int i)
+        {
+        this.iPosition = this.next[this.iPosition];
+        return this.table[this.iPosition * 26 + i];
+        }
+
+    public String encode(String s)
+        {
+        char[] ach = new char[s.length()];
+
+        for (int i = 0; i < ach.length; i++)
+            ach[i] = encodeChar(s.charAt(i));
+        return new String(ach);
+        }
+
+    /*
+     * Time spent building the tables, in nanoseconds.
+     */
+    public long buildNanos()
+        {
+        return this.nsBuild;
+        }
+
+    /*
+     * Bytes held by the substitution and step tables.
+     */
+    public static int tableBytes()
+        {
+        return POSITIONS * 26 + POSITIONS * 4;
+        }
+
+    static int indexFromPosition(int[] position)
+        {
+        return (position[0] * 26 + position[1]) * 26 + position[2];
+        }
+    }
@@ -0,0 +1,163 @@
+/*
+  CompiledKeyPool.java - Compiled keys shared between messages and threads.
+
+  Building a CompiledEnigma costs a few milliseconds, after which each
+  letter is a single table lookup.  The pool keeps the most recently used
+  compiled keys and hands out machines that share their tables, each with
+  its own rotor position, so a key used by many messages (or requests) is
+  compiled once.  Keys are everything but the start position of the
+  stepping rotors (the Greek wheel of an M4 is folded into the tables, so
+  it is part of the key).
+
+  Compiling only pays for itself over about BatchEncoder.COMPILE_THRESHOLD
+  letters, so getIfWorthwhile() compiles a key only once that many have
+  been asked for under it (in one message or many); until then it returns
+  null and the caller encodes with a plain Enigma, whose key comes from
+  the EnigmaKey caches.  A stream of one-off keys then never compiles.
+
+  Two threads missing on the same key at once may both compile it; the
+  second simply replaces the first.
+
+ */
+
+package org.startpad;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CompiledKeyPool
+    {
+    static final int DEFAULT_SIZE = 64;
+    // Keys whose letters are counted towards compiling, per pooled key
+    static final int USAGE_PER_KEY = 16;
+
+    LruCache<String, CompiledEnigma> compiled;
+    AtomicLong cHits = new AtomicLong();
+    AtomicLong cMisses = new AtomicLong();
+    // Letters asked for under each key not yet compiled
+    LruCache<String, AtomicLong> usage;
+    AtomicLong cUncompiled = new AtomicLong();
+
+    public CompiledKeyPool()
+        {
+        this(DEFAULT_SIZE);
+        }
+
+    /*
+     * Each compiled key holds about CompiledEnigma.tableBytes() (~530K).
+     */
+    public CompiledKeyPool(int cKeys)
+        {
+        if (cKeys < 1)
+            throw new IllegalArgumentException("Pool size must be positive: " + cKeys);
+        this.compiled = new LruCache<String, CompiledEnigma>(cKeys);
+        this.usage = new LruCache<String, AtomicLong>(cKeys * USAGE_PER_KEY);
+        }
+
+    /*
+     * A machine for settings, at its start position.  Throws
+     * IllegalArgumentException for an invalid key.
+     */
+    public CompiledEnigma get(Enigma.Settings settings)
+        {
+        String sKey = keyString(settings);
+        CompiledEnigma machine = this.compiled.get(sKey);
+
+        if (machine != null)
+            {
+            this.cHits.incrementAndGet();
+            return machine.copy(settings);
+            }
+
+        return compile(sKey, settings);
+        }
+
+    /*
+     * A machine for settings if its key is pooled, or has now had enough
+     * letters asked for - cLetters more - to be worth compiling; else null.
+     */
+    public CompiledEnigma getIfWorthwhile(Enigma.Settings settings, long cLetters)
+        {
+        String sKey = keyString(settings);
+        CompiledEnigma machine = this.compiled.get(sKey);
+
+        if (machine != null)
+            {
+            this.cHits.incrementAndGet();
+            return machine.copy(settings);
+            }
+
+        AtomicLong cAsked = this.usage.get(sKey);
+        if (cAsked == null)
+            {
+            cAsked = new AtomicLong();
+            this.usage.put(sKey, cAsked);
+            }
+        if (cAsked.addAndGet(cLetters) < BatchEncoder.COMPILE_THRESHOLD)
+            {
+            this.cUncompiled.incrementAndGet();
+            return null;
+            }
+        return compile(sKey, settings);
+        }
+
+    private CompiledEnigma compile(String sKey, Enigma.Settings settings)
+        {
+        this.cMisses.incrementAndGet();
+        CompiledEnigma machine = new CompiledEnigma(settings);
+        this.compiled.put(sKey, machine);
+        return machine.copy(settings);
+        }
+
+    public long hits()
+        {
+        return this.cHits.get();
+        }
+
+    public long misses()
+        {
+        return this.cMisses.get();
+        }
+
+    /*
+     * getIfWorthwhile() calls left to a plain Enigma.
+     */
+    public long uncompiled()
+        {
+        return this.cUncompiled.get();
+        }
+
+    public int size()
+        {
+        return this.compiled.size();
+        }
+
+    public void clear()
+        {
+        this.compiled.clear();
+        this.usage.clear();
+        }
+
+    /*
+     * Validates the settings (the key via the EnigmaKey caches) and names
+     * the key.
+     */
+    static String keyString(Enigma.Settings settings)
+        {
+        if (settings.position.length != settings.rotors.length)
+            throw new IllegalArgumentException("Expected a start position for each rotor.");
+        for (char ch : settings.position)
+            Enigma.iFromSetting(ch, "position");
+
+        EnigmaKey key = EnigmaKey.forSettings(settings);
+        StringBuilder sb = new StringBuilder(48);
+
+        sb.append(settings.reflector.toUpperCase());
+        for (int i = 0; i < settings.rotors.length; i++)
+            sb.append(',').append(settings.rotors[i].toUpperCase());
+        sb.append(',').append(new String(settings.rings).toUpperCase());
+        sb.append(',').append(key.plugs());
+        if (key.wheels.greek != null)
+            sb.append(',').append(Character.toUpperCase(settings.position[0]));
+        return sb.toString();
+        }
+    }
@@ -0,0 +1,489 @@
+/*
+  CribDragger.java - Find every legal offset for cribs in a long ciphertext.
+
+  Enigma never enciphers a letter to itself, so a crib cannot sit at any
+  offset where one of its letters matches the ciphertext letter under it.
+  The ciphertext is held as 26 bitsets, one per letter, bit i set where
+  letter i of the ciphertext is that letter.  For a block of 64 offsets
+  the offsets ruled out by crib letter j are the bitset for that letter
+  shifted down by j; ORing those over the crib leaves the illegal offsets
+  in one word, so each crib letter costs a shift and an OR per 64
+  offsets.  Every crib is tested against a block while its words are in
+  cache, and blocks are split between tasks on the executor.
+
+  Legal offsets are ranked by the menu they would give the Bombe - more
+  closed loops (then a better connected test letter) stop fewer false
+  positions - and each Placement makes its Bombe.Menu directly from the
+  letter indices.
+
+ */
+
+package org.startpad;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CribDragger
+    {
+    // Words of offsets (64 each) per scan task.
+    static final int BLOCK_WORDS = 1 << 12;
+
+    static final int[] IDENTITY = new int[26];
+    static final int[] ZEROS = new int[26];
+
+    static
+        {
+        for (int i = 0; i < 26; i++)
+            IDENTITY[i] = i;
+        }
+
+    static public class Placement implements Comparable<Placement>
+        {
+        public final int iCrib;
+        public final int offset;
+        public final int cLoops;
+        public final int cLetters;
+        public final int score;
+
+        CribDragger dragger;
+
+        Placement(CribDragger dragger, int iCrib, int offset, int cLoops, int cLetters, int score)
+            {
+            this.dragger = dragger;
+            this.iCrib = iCrib;
+            this.offset = offset;
+            this.cLoops = cLoops;
+            this.cLetters = cLetters;
+            this.score = score;
+            }
+
+        public String crib()
+            {
+            return this.dragger.crib(this.iCrib);
+            }
+
+        public Bombe.Menu menu()
+            {
+            return new Bombe.Menu(this.dragger.cipher, this.dragger.cribs.get(this.iCrib), this.offset);
+            }
+
+        public Bombe bombe()
+            {
+            return new Bombe(menu());
+            }
+
+        /*
+         * Higher scores first; ties go to the earlier crib, then offset.
+         */
+        public int compareTo(Placement other)
+            {
+            if (this.score != other.score)
+                return this.score < other.score ? -1 : 1;
+            if (this.iCrib != other.iCrib)
+                return this.iCrib > other.iCrib ? -1 : 1;
+            return this.offset > other.offset ? -1 : this.offset < other.offset ? 1 : 0;
+            }
+
+        public String toString()
+            {
+            return crib() + " at " + this.offset + ": " + this.cLoops + " loops, "
+                    + this.cLetters + " letters";
+            }
+        }
+
+    byte[] cipher;
+    long[][] bits;
+    List<byte[]> cribs = new ArrayList<byte[]>();
+    List<long[]> legal = new ArrayList<long[]>();
+    int cScanned;
+
+    /*
+     * Letters of ciphertext (anything else is skipped, as it does not step
+     * the rotors); offsets count letters.
+     */
+    public CribDragger(CharSequence ciphertext)
+        {
+        this(indices(ciphertext));
+        }
+
+    /*
+     * Latin-1 (or ASCII) text from position to limit, e.g. a memory mapped
+     * intercept file.  The buffer's position is not changed.
+     */
+    public CribDragger(ByteBuffer ciphertext)
+        {
+        byte[] cipher = new byte[ciphertext.remaining()];
+        int cLetters = 0;
+
+        for (int i = ciphertext.position(); i < ciphertext.limit(); i++)
+            {
+            byte i26 = Enigma.LATIN1_LETTERS[ciphertext.get(i) & 0xFF];
+            if (i26 >= 0)
+                cipher[cLetters++] = i26;
+            }
+        init(cLetters == cipher.length ? cipher : Arrays.copyOf(cipher, cLetters));
+        }
+
+    CribDragger(byte[] cipher)
+        {
+        init(cipher);
+        }
+
+    private void init(byte[] cipher)
+        {
+        this.cipher = cipher;
+
+        // Two spare words so a block's shifted reads never run off the end.
+        int cWords = (cipher.length >>> 6) + 2;
+        this.bits = new long[26][cWords];
+        for (int i = 0; i < cipher.length; i++)
+            this.bits[cipher[i]][i >>> 6] |= 1L << i;
+        }
+
+    /*
+     * Returns the crib's index.  Cribs longer than the ciphertext are
+     * accepted and have no legal offsets.
+     */
+    public int addCrib(String crib)
+        {
+        byte[] letters = indices(crib);
+
+        if (letters.length == 0)
+            throw new IllegalArgumentException("Crib has no letters.");
+        this.cribs.add(letters);
+        return this.cribs.size() - 1;
+        }
+
+    public String crib(int iCrib)
+        {
+        byte[] letters = this.cribs.get(iCrib);
+        char[] ach = new char[letters.length];
+        for (int i = 0; i < ach.length; i++)
+            ach[i] = Enigma.chFromI(letters[i]);
+        return new String(ach);
+        }
+
+    public int cribCount()
+        {
+        return this.cribs.size();
+        }
+
+    public int length()
+        {
+        return this.cipher.length;
+        }
+
+    public void scan()
+        {
+        scan(ParallelEncoder.defaultExecutor());
+        }
+
+    /*
+     * Find the legal offsets of every crib added so far.
+     */
+    public void scan(ExecutorService executor)
+        {
+        final int cCribs = this.cribs.size();
+        final int cWords = (this.cipher.length >>> 6) + 1;
+
+        this.legal.clear();
+        for (int iCrib = 0; iCrib < cCribs; iCrib++)
+            this.legal.add(new long[cWords]);
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int w = 0; w < cWords; w += BLOCK_WORDS)
+            {
+            final int wFirst = w;
+            final int wLim = Math.min(w + BLOCK_WORDS, cWords);
+            tasks.add(new Callable<Void>()
+                {
+                public Void call()
+                    {
+                    scanBlock(wFirst, wLim, cCribs);
+                    return null;
+                    }
+                });
+            }
+
+        invokeAll(executor, tasks, "Crib scan");
+        this.cScanned = cCribs;
+        }
+
+    /*
+     * Words wFirst to wLim of every crib's legal offset bitset.
+     */
+    void scanBlock(int wFirst, int wLim, int cCribs)
+        {
+        long[][] bits = this.bits;
+        long[] conflict = new long[wLim - wFirst];
+        int cOffsets = this.cipher.length;
+
+        for (int iCrib = 0; iCrib < cCribs; iCrib++)
+            {
+            byte[] crib = this.cribs.get(iCrib);
+            long[] legal = this.legal.get(iCrib);
+            int iLastOffset = cOffsets - crib.length;
+
+            if (iLastOffset < 0)
+                continue;
+
+            int wLast = Math.min(wLim, (iLastOffset >>> 6) + 1);
+            int cw = wLast - wFirst;
+            if (cw <= 0)
+                continue;
+
+            // One crib letter at a time over the block - a loop the JIT can
+            // unroll (and vectorize) with no dependence between words.
+            for (int w = 0; w < cw; w++)
+                conflict[w] = 0;
+            for (int j = 0; j < crib.length; j++)
+                {
+                long[] letter = bits[crib[j]];
+                int k = wFirst + (j >>> 6);
+                int s = j & 63;
+                int t = 63 - s;
+                // (x << 1) << t is 0 when s == 0, as the carried word should be.
+                for (int w = 0; w < cw; w++)
+                    conflict[w] |= (letter[k + w] >>> s) | ((letter[k + w + 1] << 1) << t);
+                }
+            for (int w = 0; w < cw; w++)
+                legal[wFirst + w] = ~conflict[w];
+
+            if (wLast - 1 == iLastOffset >>> 6)
+                legal[wLast - 1] &= -1L >>> (63 - (iLastOffset & 63));
+            }
+        }
+
+    /*
+     * Bit i set if the crib may start at letter i.
+     */
+    public long[] legalOffsets(int iCrib)
+        {
+        checkScanned(iCrib);
+        return this.legal.get(iCrib).clone();
+        }
+
+    public boolean isLegal(int iCrib, int offset)
+        {
+        checkScanned(iCrib);
+        if (offset < 0 || offset >= this.cipher.length)
+            return false;
+        return (this.legal.get(iCrib)[offset >>> 6] & (1L << offset)) != 0;
+        }
+
+    public int countLegal(int iCrib)
+        {
+        checkScanned(iCrib);
+        int c = 0;
+        for (long word : this.legal.get(iCrib))
+            c += Long.bitCount(word);
+        return c;
+        }
+
+    public List<Placement> rank(int cTop)
+        {
+        return rank(cTop, ParallelEncoder.defaultExecutor());
+        }
+
+    /*
+     * The cTop best legal placements over all cribs, best first.  Scans
+     * first if cribs have been added since the last scan.
+     */
+    public List<Placement> rank(final int cTop, ExecutorService executor)
+        {
+        if (cTop < 1)
+            throw new IllegalArgumentException("Must keep at least one placement.");
+        if (this.cScanned != this.cribs.size())
+            scan(executor);
+
+        final int cWords = (this.cipher.length >>> 6) + 1;
+        final AtomicInteger shared = new AtomicInteger(-1);
+        List<Callable<List<Placement>>> tasks = new ArrayList<Callable<List<Placement>>>();
+        for (int iCrib = 0; iCrib < this.cribs.size(); iCrib++)
+            for (int w = 0; w < cWords; w += BLOCK_WORDS)
+                {
+                final int iCribTask = iCrib;
+                final int wFirst = w;
+                final int wLim = Math.min(w + BLOCK_WORDS, cWords);
+                tasks.add(new Callable<List<Placement>>()
+                    {
+                    public List<Placement> call()
+                        {
+                        return rankBlock(iCribTask, wFirst, wLim, cTop, shared);
+                        }
+                    });
+                }
+
+        PriorityQueue<Placement> best = new PriorityQueue<Placement>();
+        for (List<Placement> placements : invokeAll(executor, tasks, "Crib ranking"))
+            for (Placement placement : placements)
+                keep(best, placement, cTop);
+
+        List<Placement> list = new ArrayList<Placement>(best);
+        Collections.sort(list, Collections.reverseOrder());
+        return list;
+        }
+
+    /*
+     * Score each legal offset in a block by its menu: loops (edges not
+     * needed to join its letters) first, then the most connected letter's
+     * degree.
+     *
+     * Every edge joins a crib letter to a cipher letter, so a menu has no
+     * more components than either side has distinct letters (or half its
+     * letters); with the letters under a sliding window counted that
+     * bounds the loops, and offsets that cannot beat the best cTop found
+     * by any task are skipped without building the menu.
+     */
+    List<Placement> rankBlock(int iCrib, int wFirst, int wLim, int cTop, AtomicInteger shared)
+        {
+        byte[] crib = this.cribs.get(iCrib);
+        long[] legal = this.legal.get(iCrib);
+        byte[] cipher = this.cipher;
+        int cEdges = crib.length;
+        PriorityQueue<Placement> best = new PriorityQueue<Placement>();
+        int scoreThreshold = -1;
+
+        int[] parent = new int[26];
+        int[] degree = new int[26];
+
+        int cribLetters = 0;
+        for (int i = 0; i < cEdges; i++)
+            cribLetters |= 1 << crib[i];
+        int cCribLetters = Integer.bitCount(cribLetters);
+
+        // Letter counts under the window at offset iWindow.
+        int[] cWindow = new int[26];
+        int windowLetters = 0;
+        int iWindow = wFirst << 6;
+        int iLastOffset = cipher.length - cEdges;
+        if (iLastOffset < iWindow)
+            return new ArrayList<Placement>(best);
+        for (int i = 0; i < cEdges; i++)
+            if (cWindow[cipher[iWindow + i]]++ == 0)
+                windowLetters |= 1 << cipher[iWindow + i];
+
+        for (int w = wFirst; w < wLim; w++)
+            {
+            for (long word = legal[w]; word != 0; word &= word - 1)
+                {
+                int offset = (w << 6) + Long.numberOfTrailingZeros(word);
+
+                for (; iWindow < offset; iWindow++)
+                    {
+                    if (--cWindow[cipher[iWindow]] == 0)
+                        windowLetters &= ~(1 << cipher[iWindow]);
+                    if (cWindow[cipher[iWindow + cEdges]]++ == 0)
+                        windowLetters |= 1 << cipher[iWindow + cEdges];
+                    }
+
+                int cLetters = Integer.bitCount(cribLetters | windowLetters);
+                int cComponentsMax = Math.min(cLetters / 2,
+                        Math.min(cCribLetters, Integer.bitCount(windowLetters)));
+                int scoreMax = (cEdges - cLetters + cComponentsMax) * 64 + Math.min(cEdges, 63);
+                int sharedThreshold = shared.get();
+                if (scoreMax <= scoreThreshold || scoreMax < sharedThreshold)
+                    continue;
+
+                int cUnions = 0;
+                int maxDegree = 0;
+                System.arraycopy(IDENTITY, 0, parent, 0, 26);
+                System.arraycopy(ZEROS, 0, degree, 0, 26);
+                for (int i = 0; i < cEdges; i++)
+                    {
+                    int a = crib[i];
+                    int b = cipher[offset + i];
+
+                    maxDegree = Math.max(maxDegree, Math.max(++degree[a], ++degree[b]));
+                    while (parent[a] != a)
+                        a = parent[a] = parent[parent[a]];
+                    while (parent[b] != b)
+                        b = parent[b] = parent[parent[b]];
+                    if (a != b)
+                        {
+                        parent[a] = b;
+                        cUnions++;
+                        }
+                    }
+
+                int cLoops = cEdges - cUnions;
+                int score = cLoops * 64 + Math.min(maxDegree, 63);
+                if (score <= scoreThreshold || score < sharedThreshold)
+                    continue;
+
+                keep(best, new Placement(this, iCrib, offset, cLoops, cLetters, score), cTop);
+                if (best.size() == cTop)
+                    {
+                    scoreThreshold = best.peek().score;
+                    while (scoreThreshold > (sharedThreshold = shared.get())
+                            && !shared.compareAndSet(sharedThreshold, scoreThreshold))
+                        ;
+                    }
+                }
+            }
+        return new ArrayList<Placement>(best);
+        }
+
+    private static void keep(PriorityQueue<Placement> best, Placement placement, int cTop)
+        {
+        if (best.size() < cTop)
+            best.add(placement);
+        else if (placement.compareTo(best.peek()) > 0)
+            {
+            best.poll();
+            best.add(placement);
+            }
+        }
+
+    private void checkScanned(int iCrib)
+        {
+        if (iCrib < 0 || iCrib >= this.cribs.size())
+            throw new IllegalArgumentException("No crib " + iCrib);
+        if (iCrib >= this.cScanned)
+            throw new IllegalStateException("Crib " + iCrib + " has not been scanned.");
+        }
+
+    private static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks,
+            String sWhat)
+        {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try
+            {
+            for (Future<T> result : executor.invokeAll(tasks))
+                results.add(result.get());
+            }
+        catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted during " + sWhat.toLowerCase(), e);
+            }
+        catch (ExecutionException e)
+            {
+            throw new RuntimeException(sWhat + " failed", e.getCause());
+            }
+        return results;
+        }
+
+    static byte[] indices(CharSequence s)
+        {
+        byte[] indices = new byte[s.length()];
+        int cLetters = 0;
+
+        for (int i = 0; i < s.length(); i++)
+            {
+            int i26 = Enigma.letterIndex(s.charAt(i));
+            if (i26 >= 0)
+                indices[cLetters++] = (byte) i26;
+            }
+        return cLetters == indices.length ? indices : Arrays.copyOf(indices, cLetters);
+        }
+    }
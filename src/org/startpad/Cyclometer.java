@@ -0,0 +1,572 @@
+/*
+  Cyclometer.java - Rejewski's catalogue of doubled-indicator
+  characteristics.
+
+  Before May 1940 each message began with its message key enciphered
+  twice at the day's ground setting.  If A to F are the machine's
+  permutations at those six key presses, the first and fourth letters of
+  every indicator are a pair of AD (and second and fifth of BE, third and
+  sixth of CF).  With enough of a day's indicators the three products are
+  known completely, and their cycle structures - the characteristic -
+  depend only on the rotor order and ground setting: the plugboard only
+  relabels the letters in the cycles.  The cycles of a product of two
+  fixed point free involutions come in equal pairs, so each structure is
+  a partition of 13 (one of 101) and a characteristic is one of 101^3
+  keys.
+
+  The catalogue holds the characteristic of every rotor order from
+  Enigma.rotorsBox (with each reflector) at every ground setting, for
+  fixed rings, computed in parallel - one task per rotor order - from
+  each order's CompiledEnigma tables.  Entries are sorted by
+  characteristic, so a lookup is a binary search.  Saved catalogues are
+  memory mapped: a header and the names of the rotor orders, then the
+  distinct keys, the first entry of each and the entries (rotor order and
+  ground setting) as big-endian ints.
+
+ */
+
+package org.startpad;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class Cyclometer
+    {
+    static final int MAGIC = 0x4359434C; // "CYCL"
+    static final int VERSION = 1;
+
+    // Partitions of 13, largest part first, and the index of each.
+    static final List<int[]> partitions = new ArrayList<int[]>();
+    static final Map<Long, Integer> partitionIndex = new HashMap<Long, Integer>();
+
+    static
+        {
+        partitions(13, 13, new int[13], 0);
+        for (int i = 0; i < partitions.size(); i++)
+            partitionIndex.put(signature(partitions.get(i), partitions.get(i).length), i);
+        }
+
+    /*
+     * The cycle structures of AD, BE and CF.
+     */
+    static public class Characteristic
+        {
+        public final int[] ad;
+        public final int[] be;
+        public final int[] cf;
+
+        Characteristic(int key)
+            {
+            this.ad = partitions.get(key / (101 * 101)).clone();
+            this.be = partitions.get(key / 101 % 101).clone();
+            this.cf = partitions.get(key % 101).clone();
+            }
+
+        /*
+         * From a day's indicators (six letters each, the message key
+         * twice).  Throws IllegalArgumentException unless they pin down
+         * every pair of all three products.
+         */
+        public static Characteristic fromIndicators(List<String> indicators)
+            {
+            int[][] products = new int[3][26];
+            for (int[] product : products)
+                Arrays.fill(product, -1);
+
+            for (String indicator : indicators)
+                {
+                byte[] letters = Bombe.indices(indicator);
+                if (letters.length != 6)
+                    throw new IllegalArgumentException("Indicator must have six letters: " + indicator);
+
+                for (int i = 0; i < 3; i++)
+                    {
+                    int from = letters[i];
+                    int to = letters[i + 3];
+                    if (products[i][from] >= 0 && products[i][from] != to)
+                        throw new IllegalArgumentException("Indicator " + indicator
+                                + " contradicts an earlier one.");
+                    products[i][from] = to;
+                    }
+                }
+
+            for (int i = 0; i < 3; i++)
+                for (int x = 0; x < 26; x++)
+                    if (products[i][x] < 0)
+                        throw new IllegalArgumentException("Not enough indicators: no "
+                                + PRODUCTS[i] + " pair for " + Enigma.chFromI(x));
+
+            return new Characteristic(Cyclometer.key(products[0], products[1], products[2]));
+            }
+
+        public int key()
+            {
+            return (partition(this.ad) * 101 + partition(this.be)) * 101 + partition(this.cf);
+            }
+
+        /*
+         * e.g. "AD 13 13 / BE 10 10 3 3 / CF 5 5 4 4 2 2 1 1 1 1" - every
+         * cycle, so each length appears (at least) twice.
+         */
+        public String toString()
+            {
+            return "AD" + cycles(this.ad) + " / BE" + cycles(this.be) + " / CF" + cycles(this.cf);
+            }
+
+        private static String cycles(int[] partition)
+            {
+            String s = "";
+            for (int length : partition)
+                s += " " + length + " " + length;
+            return s;
+            }
+        }
+
+    static final String[] PRODUCTS = { "AD", "BE", "CF" };
+
+    List<Enigma.Settings> orders;
+    char[] rings;
+    IntBuffer keys;
+    IntBuffer starts;
+    IntBuffer entries;
+
+    public static Cyclometer build()
+        {
+        return build(new char[] { 'A', 'A', 'A' }, ParallelEncoder.defaultExecutor());
+        }
+
+    /*
+     * Catalogue every rotor order and ground setting for the given rings.
+     */
+    public static Cyclometer build(char[] rings, ExecutorService executor)
+        {
+        final List<Enigma.Settings> orders = Enigma.rotorOrders(rings);
+
+        List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>(orders.size());
+        for (final Enigma.Settings order : orders)
+            tasks.add(new Callable<int[]>()
+                {
+                public int[] call()
+                    {
+                    return characteristics(new CompiledEnigma(order));
+                    }
+                });
+
+        // Characteristic in the high word, entry in the low, to sort by key.
+        long[] sorted = new long[orders.size() * CompiledEnigma.POSITIONS];
+        try
+            {
+            int iOrder = 0;
+            int iSorted = 0;
+            for (Future<int[]> result : executor.invokeAll(tasks))
+                {
+                int[] keys = result.get();
+                for (int iPos = 0; iPos < keys.length; iPos++)
+                    sorted[iSorted++] = (long) keys[iPos] << 32 | entry(iOrder, iPos);
+                iOrder++;
+                }
+            }
+        catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted building the catalogue", e);
+            }
+        catch (ExecutionException e)
+            {
+            throw new RuntimeException("Catalogue build failed", e.getCause());
+            }
+        Arrays.sort(sorted);
+
+        int cKeys = 0;
+        for (int i = 0; i < sorted.length; i++)
+            if (i == 0 || sorted[i] >>> 32 != sorted[i - 1] >>> 32)
+                cKeys++;
+
+        Cyclometer cyclometer = new Cyclometer();
+        cyclometer.orders = orders;
+        cyclometer.rings = rings.clone();
+        cyclometer.keys = IntBuffer.allocate(cKeys);
+        cyclometer.starts = IntBuffer.allocate(cKeys + 1);
+        cyclometer.entries = IntBuffer.allocate(sorted.length);
+
+        int iKey = 0;
+        for (int i = 0; i < sorted.length; i++)
+            {
+            if (i == 0 || sorted[i] >>> 32 != sorted[i - 1] >>> 32)
+                {
+                cyclometer.keys.put(iKey, (int) (sorted[i] >>> 32));
+                cyclometer.starts.put(iKey++, i);
+                }
+            cyclometer.entries.put(i, (int) sorted[i]);
+            }
+        cyclometer.starts.put(cKeys, sorted.length);
+        return cyclometer;
+        }
+
+    /*
+     * Characteristic key at each ground setting of a compiled rotor order.
+     */
+    static int[] characteristics(CompiledEnigma machine)
+        {
+        byte[] table = machine.table;
+        int[] next = machine.next;
+        int[] keys = new int[CompiledEnigma.POSITIONS];
+        int[] rows = new int[6];
+        int[][] products = new int[3][26];
+
+        for (int iPos = 0; iPos < CompiledEnigma.POSITIONS; iPos++)
+            {
+            int iState = iPos;
+            for (int i = 0; i < 6; i++)
+                {
+                iState = next[iState];
+                rows[i] = iState * 26;
+                }
+
+            for (int i = 0; i < 3; i++)
+                for (int x = 0; x < 26; x++)
+                    products[i][x] = table[rows[i + 3] + table[rows[i] + x]];
+
+            keys[iPos] = key(products[0], products[1], products[2]);
+            }
+        return keys;
+        }
+
+    static int key(int[] ad, int[] be, int[] cf)
+        {
+        return (structure(ad) * 101 + structure(be)) * 101 + structure(cf);
+        }
+
+    /*
+     * Partition index of a product's cycle structure (each pair of equal
+     * cycles counted once).
+     */
+    static int structure(int[] product)
+        {
+        int[] cLength = new int[27];
+        int seen = 0;
+
+        for (int x = 0; x < 26; x++)
+            {
+            if ((seen & (1 << x)) != 0)
+                continue;
+            int length = 0;
+            for (int y = x; (seen & (1 << y)) == 0; y = product[y])
+                {
+                seen |= 1 << y;
+                length++;
+                }
+            cLength[length]++;
+            }
+
+        long signature = 0;
+        for (int length = 26; length >= 1; length--)
+            {
+            if ((cLength[length] & 1) != 0)
+                throw new IllegalArgumentException("Not a product of two reciprocal permutations.");
+            for (int i = 0; i < cLength[length] / 2; i++)
+                signature = signature * 14 + length;
+            }
+        return partitionIndex.get(signature);
+        }
+
+    static int partition(int[] parts)
+        {
+        int[] sorted = parts.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length / 2; i++)
+            {
+            int t = sorted[i];
+            sorted[i] = sorted[sorted.length - 1 - i];
+            sorted[sorted.length - 1 - i] = t;
+            }
+
+        Integer index = partitionIndex.get(signature(sorted, sorted.length));
+        if (index == null)
+            throw new IllegalArgumentException("Not a partition of 13: " + Arrays.toString(parts));
+        return index;
+        }
+
+    private static long signature(int[] parts, int cParts)
+        {
+        long signature = 0;
+        for (int i = 0; i < cParts; i++)
+            signature = signature * 14 + parts[i];
+        return signature;
+        }
+
+    private static void partitions(int remaining, int largest, int[] parts, int cParts)
+        {
+        if (remaining == 0)
+            {
+            partitions.add(Arrays.copyOf(parts, cParts));
+            return;
+            }
+        for (int part = Math.min(remaining, largest); part >= 1; part--)
+            {
+            parts[cParts] = part;
+            partitions(remaining - part, part, parts, cParts + 1);
+            }
+        }
+
+    static int entry(int iOrder, int iPos)
+        {
+        return iOrder << 15 | iPos;
+        }
+
+    /*
+     * The characteristic a key would show (its rings are ignored - the
+     * position is taken as a ground setting for this catalogue's rings).
+     */
+    public Characteristic characteristic(Enigma.Settings settings)
+        {
+        Enigma.Settings order = new Enigma.Settings();
+        order.rotors = settings.rotors;
+        order.reflector = settings.reflector;
+        order.rings = this.rings;
+
+        int iPos = 0;
+        for (int i = 0; i < 3; i++)
+            iPos = iPos * 26 + Enigma.iFromCh(settings.position[i]);
+        return new Characteristic(characteristics(new CompiledEnigma(order))[iPos]);
+        }
+
+    /*
+     * Rotor orders and ground settings (with this catalogue's rings) that
+     * show the characteristic.
+     */
+    public List<Enigma.Settings> lookup(Characteristic characteristic)
+        {
+        int iKey = find(characteristic.key());
+        List<Enigma.Settings> found = new ArrayList<Enigma.Settings>();
+        if (iKey < 0)
+            return found;
+
+        for (int i = this.starts.get(iKey); i < this.starts.get(iKey + 1); i++)
+            {
+            int entry = this.entries.get(i);
+            Enigma.Settings order = this.orders.get(entry >>> 15);
+            int iPos = entry & 0x7FFF;
+
+            Enigma.Settings settings = new Enigma.Settings();
+            settings.rotors = order.rotors.clone();
+            settings.reflector = order.reflector;
+            settings.rings = this.rings.clone();
+            settings.position = new char[] { Enigma.chFromI(iPos / 676),
+                    Enigma.chFromI(iPos / 26 % 26), Enigma.chFromI(iPos % 26) };
+            found.add(settings);
+            }
+        return found;
+        }
+
+    /*
+     * Number of keys showing the characteristic, without listing them.
+     */
+    public int count(Characteristic characteristic)
+        {
+        int iKey = find(characteristic.key());
+        return iKey < 0 ? 0 : this.starts.get(iKey + 1) - this.starts.get(iKey);
+        }
+
+    private int find(int key)
+        {
+        int lo = 0;
+        int hi = this.keys.limit() - 1;
+        while (lo <= hi)
+            {
+            int mid = (lo + hi) >>> 1;
+            int keyMid = this.keys.get(mid);
+            if (keyMid < key)
+                lo = mid + 1;
+            else if (keyMid > key)
+                hi = mid - 1;
+            else
+                return mid;
+            }
+        return -1;
+        }
+
+    /*
+     * Build (or map) a catalogue and look up a day's indicators:
+     *
+     *   java org.startpad.Cyclometer catalogue.bin [indicators.txt]
+     *
+     * The catalogue file is built and saved if it does not exist;
+     * indicators are read one per line.
+     */
+    public static void main(String[] args) throws IOException
+        {
+        if (args.length < 1 || args.length > 2)
+            {
+            System.err.println("Usage: Cyclometer catalogue [indicators]");
+            System.exit(2);
+            }
+
+        File file = new File(args[0]);
+        Cyclometer cyclometer;
+        long nsStart = System.nanoTime();
+        if (file.exists())
+            cyclometer = map(file);
+        else
+            {
+            cyclometer = build();
+            cyclometer.save(file);
+            }
+        System.out.println(String.format("%s: %d characteristics, %d keys (%.1f s)", file,
+                cyclometer.size(), cyclometer.entryCount(), (System.nanoTime() - nsStart) / 1e9));
+
+        if (args.length > 1)
+            {
+            List<String> indicators = new ArrayList<String>();
+            BufferedReader in = new BufferedReader(new FileReader(args[1]));
+            try
+                {
+                for (String line; (line = in.readLine()) != null;)
+                    if (line.trim().length() > 0)
+                        indicators.add(line.trim());
+                }
+            finally
+                {
+                in.close();
+                }
+
+            Characteristic characteristic = Characteristic.fromIndicators(indicators);
+            System.out.println(characteristic);
+            for (Enigma.Settings settings : cyclometer.lookup(characteristic))
+                System.out.println(settings.reflector + "-" + settings.rotors[0] + "-"
+                        + settings.rotors[1] + "-" + settings.rotors[2] + " "
+                        + new String(settings.position));
+            }
+        System.exit(0);
+        }
+
+    /*
+     * Distinct characteristics in the catalogue.
+     */
+    public int size()
+        {
+        return this.keys.limit();
+        }
+
+    public int entryCount()
+        {
+        return this.entries.limit();
+        }
+
+    public void save(File file) throws IOException
+        {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try
+            {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(this.orders.size());
+            out.writeInt(size());
+            out.writeInt(entryCount());
+            out.writeBytes(new String(this.rings));
+
+            // Names padded to whole ints, so the tables that follow are
+            // aligned in the mapping.
+            int cb = 0;
+            for (Enigma.Settings order : this.orders)
+                {
+                String sOrder = order.reflector + "," + order.rotors[0] + "," + order.rotors[1]
+                        + "," + order.rotors[2];
+                out.writeByte(sOrder.length());
+                out.writeBytes(sOrder);
+                cb += 1 + sOrder.length();
+                }
+            for (int i = (3 + cb) % 4; i != 0 && i < 4; i++)
+                out.writeByte(0);
+
+            for (int i = 0; i < size(); i++)
+                out.writeInt(this.keys.get(i));
+            for (int i = 0; i <= size(); i++)
+                out.writeInt(this.starts.get(i));
+            for (int i = 0; i < entryCount(); i++)
+                out.writeInt(this.entries.get(i));
+            }
+        finally
+            {
+            out.close();
+            }
+        }
+
+    /*
+     * Catalogue saved by save(), mapped read-only.
+     */
+    public static Cyclometer map(File file) throws IOException
+        {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+            {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (mapped.limit() < 23 || mapped.getInt() != MAGIC)
+                throw new IOException(file + " is not a cyclometer catalogue.");
+            int version = mapped.getInt();
+            if (version != VERSION)
+                throw new IOException(file + " is catalogue version " + version);
+
+            Cyclometer cyclometer = new Cyclometer();
+            int cOrders = mapped.getInt();
+            int cKeys = mapped.getInt();
+            int cEntries = mapped.getInt();
+            cyclometer.rings = new char[] { (char) mapped.get(), (char) mapped.get(), (char) mapped.get() };
+
+            cyclometer.orders = new ArrayList<Enigma.Settings>(cOrders);
+            for (int i = 0; i < cOrders; i++)
+                {
+                byte[] name = new byte[mapped.get()];
+                mapped.get(name);
+                String[] parts = new String(name, "US-ASCII").split(",");
+
+                Enigma.Settings order = new Enigma.Settings();
+                order.reflector = parts[0];
+                order.rotors = new String[] { parts[1], parts[2], parts[3] };
+                order.rings = cyclometer.rings.clone();
+                cyclometer.orders.add(order);
+                }
+            mapped.position((mapped.position() + 3) & ~3);
+
+            if (mapped.remaining() != 4L * (2L * cKeys + 1 + cEntries))
+                throw new IOException(file + " is truncated.");
+            cyclometer.keys = ints(mapped, cKeys);
+            cyclometer.starts = ints(mapped, cKeys + 1);
+            cyclometer.entries = ints(mapped, cEntries);
+            return cyclometer;
+            }
+        finally
+            {
+            raf.close();
+            }
+        }
+
+    private static IntBuffer ints(ByteBuffer mapped, int c)
+        {
+        ByteBuffer slice = mapped.slice();
+        slice.limit(4 * c);
+        mapped.position(mapped.position() + 4 * c);
+        return slice.asIntBuffer();
+        }
+    }
@@ -13,28 +13,54 @@
 
 package org.startpad;
 
-import java.util.Iterator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class Enigma
     {
     static class Rotor
         {
+        enum Kind
+            {
+            ROTOR, GREEK, REFLECTOR, THIN_REFLECTOR
+            }
+
         String name;
+        Kind kind;
         String wires;
-        char notch;
+        String notches;
+        int iNotch;
+        int cNotches;
         int[] map = new int[26];
         int[] mapReverse = new int[26];
+        // 1 at each position from which the rotor carries its left neighbour
+        byte[] atNotch = new byte[26];
+        // Index in RotorCatalog, once interned (UKW-D wirings stay -1)
+        int id = -1;
+
+        // Tables for each ring setting, built on first use - see forward()
+        private final byte[][] forwardByRing = new byte[26][];
+        private final byte[][] reverseByRing = new byte[26][];
 
         public Rotor()
             {
             }
 
-        public Rotor(String name, String wires, char notch)
+        public Rotor(String name, Kind kind, String wires, String notches)
             {
             this.name = name;
+            this.kind = kind;
             this.wires = wires;
-            this.notch = notch;
+            this.notches = notches;
+            this.cNotches = notches.length();
+            this.iNotch = this.cNotches == 0 ? -1 : iFromCh(notches.charAt(0));
+
+            for (int i = 0; i < this.cNotches; i++)
+                this.atNotch[iFromCh(notches.charAt(i))] = 1;
 
             this.CreateMapping();
             }
@@ -44,6 +70,41 @@ public class Enigma
             return this.name;
             }
 
+        /*
+         * Letter out showing position p for letter i in, with the ring
+         * folded in: forward(ring)[p * 26 + i].  Built once per ring and
+         * shared by every key using this rotor, so never written to.
+         */
+        synchronized byte[] forward(int ring)
+            {
+            if (this.forwardByRing[ring] == null)
+                {
+                byte[] forward = new byte[676];
+                byte[] reverse = new byte[676];
+                for (int p = 0; p < 26; p++)
+                    {
+                    int o = (p - ring + 26) % 26;
+                    for (int i = 0; i < 26; i++)
+                        {
+                        forward[p * 26 + i] = (byte) ((i + this.map[(i + o) % 26]) % 26);
+                        reverse[p * 26 + i] = (byte) ((i + this.mapReverse[(i + o) % 26]) % 26);
+                        }
+                    }
+                this.forwardByRing[ring] = forward;
+                this.reverseByRing[ring] = reverse;
+                }
+            return this.forwardByRing[ring];
+            }
+
+        /*
+         * The return path through the rotor, laid out as forward().
+         */
+        synchronized byte[] reverse(int ring)
+            {
+            forward(ring);
+            return this.reverseByRing[ring];
+            }
+
         private void CreateMapping()
             {
             for (int iFrom = 0; iFrom < 26; iFrom++)
@@ -73,171 +134,598 @@ public class Enigma
             }
         }
 
+    /*
+     * String-per-letter tracing, kept for existing callers.  It is fed from
+     * a one-event TraceBuffer - use setTraceBuffer() directly to trace long
+     * messages.
+     */
     public interface Trace
         {
         public void Callback(String trace);
         }
 
-    private Trace trace;
+    static class TraceAdapter extends TraceBuffer
+        {
+        Trace trace;
+
+        TraceAdapter(Trace trace)
+            {
+            super(1);
+            this.trace = trace;
+            }
+
+        protected void recorded()
+            {
+            this.trace.Callback(path(0));
+            }
+        }
+
+    private TraceBuffer tracer;
 
     static Rotor[] rotorsBox = {
-            new Rotor("I", "EKMFLGDQVZNTOWYHXUSPAIBRCJ", 'Q'),
-            new Rotor("II", "AJDKSIRUXBLHWTMCQGZNPYFVOE", 'E'),
-            new Rotor("III", "BDFHJLCPRTXVZNYEIWGAKMUSQO", 'V'),
-            new Rotor("IV", "ESOVPZJAYQUIRHXLNFTGKDCMWB", 'J'),
-            new Rotor("V", "VZBRGITYUPSDNHLXAWMJQOFECK", 'Z'),
-            new Rotor("B", "YRUHQSLDPXNGOKMIEBFZCWVJAT", ' '),
-            new Rotor("C", "FVPJIAOYEDRZXWGCTKUQSBNMHL", ' ') };
+            new Rotor("I", Rotor.Kind.ROTOR, "EKMFLGDQVZNTOWYHXUSPAIBRCJ", "Q"),
+            new Rotor("II", Rotor.Kind.ROTOR, "AJDKSIRUXBLHWTMCQGZNPYFVOE", "E"),
+            new Rotor("III", Rotor.Kind.ROTOR, "BDFHJLCPRTXVZNYEIWGAKMUSQO", "V"),
+            new Rotor("IV", Rotor.Kind.ROTOR, "ESOVPZJAYQUIRHXLNFTGKDCMWB", "J"),
+            new Rotor("V", Rotor.Kind.ROTOR, "VZBRGITYUPSDNHLXAWMJQOFECK", "Z"),
+            new Rotor("B", Rotor.Kind.REFLECTOR, "YRUHQSLDPXNGOKMIEBFZCWVJAT", ""),
+            new Rotor("C", Rotor.Kind.REFLECTOR, "FVPJIAOYEDRZXWGCTKUQSBNMHL", "") };
+
+    /*
+     * The naval additions: three more rotors (with two notches each) and, for
+     * the four rotor M4, the thin Greek wheels and thin reflectors that share
+     * the space of a standard reflector.
+     */
+    static Rotor[] rotorsNaval = {
+            new Rotor("VI", Rotor.Kind.ROTOR, "JPGVOUMFYQBENHZRDKASXLICTW", "ZM"),
+            new Rotor("VII", Rotor.Kind.ROTOR, "NZJHGRCXMYSWBOUFAIVLPEKQDT", "ZM"),
+            new Rotor("VIII", Rotor.Kind.ROTOR, "FKQHTLXOCBJSPDZRAMEWNIUYGV", "ZM"),
+            new Rotor("Beta", Rotor.Kind.GREEK, "LEYJVCNIXWPBQMDRTAKZGFUHOS", ""),
+            new Rotor("Gamma", Rotor.Kind.GREEK, "FSOKANUERHMBTIYCWLQPZXVGJD", ""),
+            new Rotor("B-Thin", Rotor.Kind.THIN_REFLECTOR, "ENKQAUYWJICOPBLMDXZVFTHRGS", ""),
+            new Rotor("C-Thin", Rotor.Kind.THIN_REFLECTOR, "RDOBJNTKVEHMLFCWZAXGYIPSUQ", "") };
+
+    /*
+     * Classification of each Latin-1 character: the letter index (0-25) of
+     * letters of the machine's alphabet in either case, else -1 - and, for
+     * those passed through, the upper case form (where that is Latin-1).
+     */
+    static final byte[] LATIN1_LETTERS = new byte[256];
+    static final byte[] LATIN1_UPPER = new byte[256];
+
+    static
+        {
+        for (int ch = 0; ch < 256; ch++)
+            {
+            char chUpper = Character.toUpperCase((char) ch);
+            LATIN1_LETTERS[ch] = (byte) (chUpper >= 'A' && chUpper <= 'Z' ? chUpper - 'A' : -1);
+            LATIN1_UPPER[ch] = (byte) (chUpper < 256 ? chUpper : ch);
+            }
+        }
 
     // Instance variables
 
     Settings settings = new Settings();
+    EnigmaKey key;
     Rotor[] rotors = new Rotor[3];
     Rotor reflector;
     public int[] position = new int[3];
     int[] rings = new int[3];
     int[] mapPlugs = new int[26];
+    int[] tracePath = new int[TraceBuffer.MAX_STEPS];
+
+    // M4 only - the Greek wheel never steps
+    Rotor greek;
+    int ringGreek;
+    int positionGreek;
+
+    // Lookup tables from the key - see EnigmaKey.Wheels
+    byte[][] forward;
+    byte[][] reverse;
+    byte[] reflect;
+    byte[] notchesMiddle;
+    byte[] notchesRight;
 
     public Enigma(Trace trace)
         {
-        this.trace = trace;
-
-        if (this.trace != null)
-            this.trace.Callback("Constructed");
+        if (trace != null)
+            {
+            this.tracer = new TraceAdapter(trace);
+            trace.Callback("Constructed");
+            }
 
         init(settings);
         }
 
+    /*
+     * Record letters' paths into buffer (replacing any Trace); null turns
+     * tracing off.
+     */
+    public void setTraceBuffer(TraceBuffer buffer)
+        {
+        this.tracer = buffer;
+        }
+
+    public TraceBuffer getTraceBuffer()
+        {
+        return this.tracer;
+        }
+
+    /*
+     * Independent machine with the same key and rotor position - for
+     * encoding part of a message on another thread.  Tracing is not copied.
+     */
+    public Enigma copy()
+        {
+        Enigma copy = new Enigma((Trace) null);
+
+        copy.settings = this.settings;
+        copy.setKey(this.key);
+        copy.position = this.position.clone();
+        copy.positionGreek = this.positionGreek;
+        return copy;
+        }
+
     public void init(Settings settings)
         {
         if (settings != null)
             this.settings = settings;
 
-        for (int i = 0; i < 3; i++)
-            this.rotors[i] = rotorFromName(this.settings.rotors[i]);
+        if (this.settings.position.length != this.settings.rotors.length)
+            throw new IllegalArgumentException("Expected a start position for each rotor.");
+        for (char ch : this.settings.position)
+            iFromSetting(ch, "position");
 
-        this.reflector = rotorFromName(this.settings.reflector);
+        EnigmaKey key = EnigmaKey.forSettings(this.settings);
+        this.settings.plugs = key.plugs();
+        setKey(key);
 
-        for (int i = 0; i < 3; i++)
-            this.position[i] = iFromCh(this.settings.position[i]);
+        startPosition(this.position);
+        }
 
-        for (int i = 0; i < 3; i++)
-            this.rings[i] = iFromCh(this.settings.rings[i]);
+    /*
+     * Change rotors, reflector, rings and plugs, leaving the rotor positions
+     * alone.  The key's tables are shared, not copied - nothing here writes
+     * to them.
+     */
+    public void setKey(EnigmaKey key)
+        {
+        this.key = key;
+        this.rotors = key.wheels.rotors;
+        this.reflector = key.wheels.reflector;
+        this.rings = key.wheels.rings;
+        this.mapPlugs = key.plugboard.mapPlugs;
+
+        this.greek = key.wheels.greek;
+        this.ringGreek = key.wheels.ringGreek;
+        if (this.greek == null)
+            this.positionGreek = 0;
+
+        this.forward = key.wheels.forward;
+        this.reverse = key.wheels.reverse;
+        this.reflect = key.wheels.reflect;
+        this.notchesMiddle = this.rotors[1].atNotch;
+        this.notchesRight = this.rotors[2].atNotch;
+        }
 
-        this.settings.plugs = this.settings.plugs.toUpperCase();
-        this.settings.plugs = this.settings.plugs.replaceAll("[^A-Z]", "");
-        if (this.settings.plugs.length() % 2 == 1)
-            throw new IllegalArgumentException(
-                    "Plugboard settings must have an even number of letters.");
+    public EnigmaKey getKey()
+        {
+        return this.key;
+        }
 
-        for (int i = 0; i < 26; i++)
-            this.mapPlugs[i] = i;
+    /*
+     * Rotor positions packed into a long (five bits per rotor, the Greek
+     * wheel highest), for cheap save and restore of the stepping state.
+     */
+    public long snapshot()
+        {
+        return this.positionGreek << 15 | this.position[0] << 10 | this.position[1] << 5
+                | this.position[2];
+        }
+
+    public void restore(long state)
+        {
+        if (this.greek != null)
+            this.positionGreek = (int) (state >> 15) & 31;
+        this.position[0] = (int) (state >> 10) & 31;
+        this.position[1] = (int) (state >> 5) & 31;
+        this.position[2] = (int) state & 31;
+        }
+
+    public String encode(String s)
+        {
+        char[] ach = new char[s.length()];
+
+        s.getChars(0, ach.length, ach, 0);
+        encode(ach, 0, ach.length, ach, 0);
+        return new String(ach);
+        }
+
+    /*
+     * Streaming variants of encode - none of these allocate per letter. The
+     * char[] form may encode in place (in == out, outOff <= off).
+     */
+    public void encode(CharSequence s, Appendable out) throws IOException
+        {
+        int cch = s.length();
+
+        for (int i = 0; i < cch; i++)
+            out.append(this.encodeChar(s.charAt(i)));
+        }
+
+    public int encode(char[] in, int off, int len, char[] out, int outOff)
+        {
+        for (int i = 0; i < len; i++)
+            out[outOff + i] = this.encodeChar(in[off + i]);
+        return len;
+        }
+
+    /*
+     * Encode as much of in as fits in out; both buffers are advanced by the
+     * number of characters encoded.
+     */
+    public int encode(CharBuffer in, CharBuffer out)
+        {
+        int cch = Math.min(in.remaining(), out.remaining());
 
-        for (int i = 0; i < this.settings.plugs.length(); i += 2)
+        if (in.hasArray() && out.hasArray() && !out.isReadOnly())
             {
-            int iFrom = iFromCh(this.settings.plugs.charAt(i));
-            int iTo = iFromCh(this.settings.plugs.charAt(i + 1));
+            encode(in.array(), in.arrayOffset() + in.position(), cch,
+                    out.array(), out.arrayOffset() + out.position());
+            in.position(in.position() + cch);
+            out.position(out.position() + cch);
+            return cch;
+            }
+
+        for (int i = 0; i < cch; i++)
+            out.put(this.encodeChar(in.get()));
+        return cch;
+        }
+
+    /*
+     * Byte variants for ASCII or Latin-1 text, with no charset decoding.
+     * Each byte is classified by table lookup: letters (either case) are
+     * encrypted and written as upper case ASCII, other Latin-1 letters are
+     * case folded and anything else is passed through - the same as
+     * encodeChar on the decoded text.  With fLettersOnly, non-letters are
+     * dropped instead.  Returns the number of bytes written; in may be
+     * encoded in place.
+     */
+    public int encode(byte[] in, int off, int len, byte[] out, int outOff)
+        {
+        return encode(in, off, len, out, outOff, false);
+        }
 
-            if (this.mapPlugs[iFrom] != iFrom)
-                throw new IllegalArgumentException(
-                        "Redefinition of plug settings for " + chFromI(iFrom));
+    public int encode(byte[] in, int off, int len, byte[] out, int outOff, boolean fLettersOnly)
+        {
+        int ibOut = outOff;
 
-            if (this.mapPlugs[iTo] != iTo)
-                throw new IllegalArgumentException(
-                        "Redefinition of plug setting for " + chFromI(iTo));
+        for (int ib = off; ib < off + len; ib++)
+            {
+            byte b = in[ib];
+            int i = LATIN1_LETTERS[b & 0xFF];
 
-            this.mapPlugs[iFrom] = iTo;
-            this.mapPlugs[iTo] = iFrom;
+            if (i >= 0)
+                out[ibOut++] = (byte) ('A' + encodeIndex(i));
+            else if (!fLettersOnly)
+                out[ibOut++] = LATIN1_UPPER[b & 0xFF];
             }
+        return ibOut - outOff;
         }
 
-    public String encode(String s)
+    /*
+     * Encode as many bytes of in as out has room for, advancing both
+     * buffers.  Returns the number of bytes written.
+     */
+    public int encode(ByteBuffer in, ByteBuffer out)
+        {
+        return encode(in, out, false);
+        }
+
+    public int encode(ByteBuffer in, ByteBuffer out, boolean fLettersOnly)
         {
-        String sOut = "";
+        int cb = Math.min(in.remaining(), out.remaining());
 
-        for (int i = 0; i < s.length(); i++)
-            sOut += this.encodeChar(s.charAt(i));
-        return sOut;
+        if (in.hasArray() && out.hasArray() && !out.isReadOnly())
+            {
+            int cbOut = encode(in.array(), in.arrayOffset() + in.position(), cb,
+                    out.array(), out.arrayOffset() + out.position(), fLettersOnly);
+            in.position(in.position() + cb);
+            out.position(out.position() + cbOut);
+            return cbOut;
+            }
+
+        int cbOut = 0;
+        for (int ib = 0; ib < cb; ib++)
+            {
+            byte b = in.get();
+            int i = LATIN1_LETTERS[b & 0xFF];
+
+            if (i >= 0)
+                {
+                out.put((byte) ('A' + encodeIndex(i)));
+                cbOut++;
+                }
+            else if (!fLettersOnly)
+                {
+                out.put(LATIN1_UPPER[b & 0xFF]);
+                cbOut++;
+                }
+            }
+        return cbOut;
         }
 
     public char encodeChar(char ch)
         {
-        ArrayList<Integer> tracePath = new ArrayList<Integer>();
+        int i = letterIndex(ch);
 
-        ch = Character.toUpperCase(ch);
+        if (i < 0)
+            return Character.toUpperCase(ch);
 
-        if (ch < 'A' || ch > 'Z')
-            return ch;
+        return chFromI(encodeIndex(i));
+        }
 
+    /*
+     * Step the rotors and encrypt letter index i.
+     */
+    private int encodeIndex(int i)
+        {
         this.incrementRotors();
 
-        int i = iFromCh(ch);
-        tracePath.add(i);
+        if (this.tracer == null)
+            return this.scramble(i, this.position);
+
+        return this.scrambleTrace(i);
+        }
+
+    /*
+     * Same as scramble, at the current rotor position, but recording each
+     * step of the path in the trace buffer if this letter is sampled.
+     */
+    private int scrambleTrace(int i)
+        {
+        if (!this.tracer.sample())
+            return this.scramble(i, this.position);
+
+        int cStep = 0;
+
+        this.tracePath[cStep++] = i;
 
         i = this.mapPlugs[i];
-        tracePath.add(i);
+        this.tracePath[cStep++] = i;
 
         for (int r = 2; r >= 0; r--)
             {
-            int d = this.rotors[r].map[(i + this.position[r] - this.rings[r] + 26) % 26];
-            i = (i + d) % 26;
-            tracePath.add(i);
+            i = this.forward[r][this.position[r] * 26 + i];
+            this.tracePath[cStep++] = i;
             }
 
-        i = (i + this.reflector.map[i]) % 26;
-        tracePath.add(i);
+        if (this.greek == null)
+            {
+            i = this.reflect[i];
+            this.tracePath[cStep++] = i;
+            }
+        else
+            {
+            int o = (this.positionGreek - this.ringGreek + 26) % 26;
+
+            i = (i + this.greek.map[(i + o) % 26]) % 26;
+            this.tracePath[cStep++] = i;
+            i = (i + this.reflector.map[i]) % 26;
+            this.tracePath[cStep++] = i;
+            i = (i + this.greek.mapReverse[(i + o) % 26]) % 26;
+            this.tracePath[cStep++] = i;
+            }
 
         for (int r = 0; r < 3; r++)
             {
-            int d = this.rotors[r].mapReverse[(i + this.position[r]
-                    - this.rings[r] + 26) % 26];
-            i = (i + d) % 26;
-            tracePath.add(i);
+            i = this.reverse[r][this.position[r] * 26 + i];
+            this.tracePath[cStep++] = i;
             }
 
         i = this.mapPlugs[i];
-        tracePath.add(i);
+        this.tracePath[cStep++] = i;
 
-        if (this.trace != null)
-            {
-            String s = "";
-            String sSep = "";
+        this.tracer.record(this.greek == null ? -1 : this.positionGreek, this.position,
+                this.tracePath, cStep);
 
-            Iterator<Integer> iter = tracePath.iterator();
-            while (iter.hasNext())
-                {
-                s += sSep + chFromI(iter.next());
-                sSep = "->";
-                }
-            trace.Callback(s);
-            }
+        return i;
+        }
+
+    /*
+     * Substitute letter index i through the plugboard, rotors and reflector
+     * with the rotors held at the given positions (no stepping).  Rings and
+     * any Greek wheel are already folded into the tables, so this is the
+     * same eight lookups for every machine.
+     */
+    int scramble(int i, int[] position)
+        {
+        byte[][] forward = this.forward;
+        byte[][] reverse = this.reverse;
+        int oLeft = position[0] * 26;
+        int oMiddle = position[1] * 26;
+        int oRight = position[2] * 26;
 
-        return chFromI(i);
+        i = this.mapPlugs[i];
+        i = forward[2][oRight + i];
+        i = forward[1][oMiddle + i];
+        i = forward[0][oLeft + i];
+        i = this.reflect[this.positionGreek * 26 + i];
+        i = reverse[0][oLeft + i];
+        i = reverse[1][oMiddle + i];
+        i = reverse[2][oRight + i];
+        return this.mapPlugs[i];
+        }
+
+    void incrementRotors()
+        {
+        stepPosition(this.position);
         }
 
-    private void incrementRotors()
+    void stepPosition(int[] position)
         {
         /*
          * Note that notches are components of the outer rings. So wheel motion
          * is tied to the visible rotor position (letter or number) NOT the
          * wiring position - which is dictated by the rings settings (or offset
          * from the 'A' position).
+         *
+         * A middle rotor on its notch steps itself and the left rotor (double
+         * step); a right rotor on its notch steps the middle one.
          */
+        int fDouble = this.notchesMiddle[position[1]];
+        int fCarry = this.notchesRight[position[2]] | fDouble;
+
+        position[0] = (position[0] + fDouble) % 26;
+        position[1] = (position[1] + fCarry) % 26;
+        position[2] = (position[2] + 1) % 26;
+        }
 
-        // Middle notch - all rotors rotate
-        if (this.position[1] == iFromCh(this.rotors[1].notch))
+    /*
+     * Fill in the (stepping) rotor positions from the Settings, and put the
+     * Greek wheel, if any, at its setting.
+     */
+    void startPosition(int[] position)
+        {
+        char[] start = this.settings.position;
+        int cFixed = start.length - 3;
+
+        if (this.greek != null)
+            this.positionGreek = iFromCh(start[0]);
+
+        for (int i = 0; i < 3; i++)
+            position[i] = iFromCh(start[cFixed + i]);
+        }
+
+    /*
+     * Rotor positions after offset key presses from the start position in
+     * the Settings.
+     */
+    public int[] positionAt(long offset)
+        {
+        int[] position = new int[3];
+
+        startPosition(position);
+        advancePosition(position, offset);
+        return position;
+        }
+
+    /*
+     * Set the rotors as they would be after offset key presses (letters) of
+     * a message starting at the Settings position.
+     */
+    public void seek(long offset)
+        {
+        startPosition(this.position);
+        advancePosition(this.position, offset);
+        }
+
+    /*
+     * Step the rotors count times from their current position.
+     */
+    public void advance(long count)
+        {
+        advancePosition(this.position, count);
+        }
+
+    void advancePosition(int[] position, long count)
+        {
+        /*
+         * The right rotor turns on every key press and carries the middle
+         * rotor at presses f, f + 26, f + 52, ... When the middle rotor is
+         * carried onto its own notch it double steps (with the left rotor) on
+         * the very next press.  That happens 26 * (a - 1) + 1 presses after
+         * the first carry, a being the distance of the middle rotor from its
+         * notch, and then once every 25 carries (650 presses) after that.
+         */
+        if (count < 0)
+            throw new IllegalArgumentException("Cannot step rotors backwards: " + count);
+
+        if (count == 0)
+            return;
+
+        if (this.rotors[1].cNotches > 1 || this.rotors[2].cNotches > 1)
             {
-            this.position[0] += 1;
-            this.position[1] += 1;
+            advanceCycling(position, count);
+            return;
             }
-        // Right notch - two rotors rotate
-        else if (this.position[2] == iFromCh(this.rotors[2].notch))
-            this.position[1] += 1;
 
-        this.position[2] += 1;
+        int notchMiddle = this.rotors[1].iNotch;
+        int notchRight = this.rotors[2].iNotch;
 
-        for (int i = 0; i < 3; i++)
-            this.position[i] = this.position[i] % 26;
+        // Already on the middle notch - take the double step by hand.
+        if (position[1] == notchMiddle)
+            {
+            stepPosition(position);
+            count--;
+            }
+
+        long carries = 0;
+        long doubles = 0;
+
+        if (notchRight >= 0)
+            {
+            long first = (notchRight - position[2] + 26) % 26 + 1;
+            if (count >= first)
+                carries = (count - first) / 26 + 1;
+
+            if (notchMiddle >= 0)
+                {
+                long firstDouble = first + 26 * ((notchMiddle - position[1] + 25) % 26) + 1;
+                if (count >= firstDouble)
+                    doubles = (count - firstDouble) / 650 + 1;
+                }
+            }
+
+        position[0] = (int) ((position[0] + doubles) % 26);
+        position[1] = (int) ((position[1] + carries + doubles) % 26);
+        position[2] = (int) ((position[2] + count) % 26);
+        }
+
+    /*
+     * advancePosition for rotors with two notches (VI - VIII), where the
+     * closed form above does not hold.  The middle and right rotors alone
+     * decide the stepping and have only 676 states between them, so they are
+     * stepped until a state repeats and then whole cycles are skipped.
+     */
+    private void advanceCycling(int[] position, long count)
+        {
+        int[] pressesAt = new int[676];
+        int[] doublesAt = new int[676];
+        int[] pair = new int[] { 0, position[1], position[2] };
+        long presses = 0;
+        long doubles = 0;
+        boolean fSkipped = false;
+
+        Arrays.fill(pressesAt, -1);
+
+        while (presses < count)
+            {
+            int iState = pair[1] * 26 + pair[2];
+
+            if (!fSkipped && pressesAt[iState] >= 0)
+                {
+                long period = presses - pressesAt[iState];
+                long cycles = (count - presses) / period;
+
+                doubles += cycles * (doubles - doublesAt[iState]);
+                presses += cycles * period;
+                fSkipped = true;
+                continue;
+                }
+
+            pressesAt[iState] = (int) presses;
+            doublesAt[iState] = (int) doubles;
+
+            stepPosition(pair);
+            doubles += pair[0];
+            pair[0] = 0;
+            presses++;
+            }
+
+        position[0] = (int) ((position[0] + doubles) % 26);
+        position[1] = pair[1];
+        position[2] = pair[2];
         }
 
     public String toString()
@@ -247,20 +735,25 @@ public class Enigma
 
         s += this.reflector.toString();
         sSep = "-";
+        if (this.greek != null)
+            s += sSep + this.greek.toString();
         for (int i = 0; i < 3; i++)
             s += sSep + this.rotors[i].toString();
 
         s += " Position: " + sPosition();
 
         s += " Rings: ";
+        if (this.greek != null)
+            s += chFromI(this.ringGreek);
         for (int i = 0; i < 3; i++)
-            s += chFromI(this.settings.rings[i]);
+            s += chFromI(this.rings[i]);
 
         s += " Plugs: ";
         sSep = "";
-        for (int i = 0; i < this.settings.plugs.length(); i += 2)
+        String plugs = this.key.plugs();
+        for (int i = 0; i < plugs.length(); i += 2)
             {
-            s += sSep + this.settings.plugs.substring(i, i + 2);
+            s += sSep + plugs.substring(i, i + 2);
             sSep = " ";
             }
 
@@ -270,6 +763,8 @@ public class Enigma
     public String sPosition()
 	    {
     	String s = "";
+        if (this.greek != null)
+            s += chFromI(this.positionGreek);
         for (int i = 0; i < 3; i++)
             s += chFromI(position[i]);
 	    return s;
@@ -281,12 +776,42 @@ public class Enigma
 	    return chFromI(position[iRotor]);
 	    }
 
-    private Rotor rotorFromName(String name)
+    static Rotor rotorFromName(String name)
+        {
+        return RotorCatalog.rotor(name);
+        }
+
+    /*
+     * Every rotor order (with each reflector) that can be made from the
+     * rotors in the box.
+     */
+    static List<Settings> rotorOrders(char[] rings)
         {
-        for (int i = 0; i < rotorsBox.length; i++)
-            if (name.equals(rotorsBox[i].name))
-                return rotorsBox[i];
-        throw new IllegalArgumentException("Invalid Rotor Name: " + name);
+        List<String> rotors = new ArrayList<String>();
+        List<String> reflectors = new ArrayList<String>();
+
+        for (Rotor rotor : rotorsBox)
+            if (rotor.kind == Rotor.Kind.REFLECTOR)
+                reflectors.add(rotor.name);
+            else
+                rotors.add(rotor.name);
+
+        List<Settings> orders = new ArrayList<Settings>();
+        for (String reflector : reflectors)
+            for (String left : rotors)
+                for (String middle : rotors)
+                    for (String right : rotors)
+                        {
+                        if (left.equals(middle) || left.equals(right) || middle.equals(right))
+                            continue;
+
+                        Settings settings = new Settings();
+                        settings.rotors = new String[] { left, middle, right };
+                        settings.reflector = reflector;
+                        settings.rings = rings.clone();
+                        orders.add(settings);
+                        }
+        return orders;
         }
 
     public static int iFromCh(char ch)
@@ -295,64 +820,69 @@ public class Enigma
         return ch - 'A';
         }
 
+    /*
+     * Index of a ring or position letter, which must be A to Z in either
+     * case; sSetting names the setting in the IllegalArgumentException.
+     */
+    static int iFromSetting(char ch, String sSetting)
+        {
+        if ((ch < 'A' || ch > 'Z') && (ch < 'a' || ch > 'z'))
+            throw new IllegalArgumentException("Invalid " + sSetting + " setting '" + ch
+                    + "': expected a letter A to Z.");
+        return iFromCh(ch);
+        }
+
     public static char chFromI(int i)
         {
         return (char) ((int) 'A' + i);
         }
 
-    public static String groupLetters(String s)
+    /*
+     * Letter index (0-25) that encodeChar would encrypt ch as, or -1 if it
+     * passes ch through.
+     */
+    static int letterIndex(char ch)
         {
-        s = s.toUpperCase();
-        s = s.replaceAll("[^A-Z]", "");
-        return groupBy(s, 5, ' ');
+        if (ch < 256)
+            return LATIN1_LETTERS[ch];
+
+        // A few letters outside Latin-1 (dotless i, long s) upper-case into A-Z
+        ch = Character.toUpperCase(ch);
+        return ch >= 'A' && ch <= 'Z' ? ch - 'A' : -1;
         }
 
-    private static String groupBy(String s, int n, char c)
+    /*
+     * True if encodeChar would encrypt ch (and step the rotors) rather than
+     * pass it through.
+     */
+    public static boolean isLetter(char ch)
         {
-        String sOut = "";
-        String sSep = "";
-        while (s.length() > n)
-            {
-            sOut += sSep + s.substring(0, n);
-            s = s.substring(n);
-            sSep = " ";
-            }
-        if (s.length() > 0)
-            sOut += sSep + s;
-        return sOut;
+        ch = Character.toUpperCase(ch);
+        return ch >= 'A' && ch <= 'Z';
         }
 
-    public static void main(String[] args)
+    public static String groupLetters(String s)
         {
-        System.out.println("Hello, world");
-        for (int i = 0; i < rotorsBox.length; i++)
-            System.out.println(rotorsBox[i].name + ": " + rotorsBox[i].wires
-                    + "(" + rotorsBox[i].notch + ")");
-
-        Enigma e = new Enigma(new Trace()
-            {
-                public void Callback(String trace)
-                    {
-                    System.out.println("Trace: " + trace);
-                    }
-            });
-
-        // e = new Enigma(null);
+        StringBuilder sb = new StringBuilder(s.length() + s.length() / 5);
 
-        System.out.println("Machine: " + e.toString());
-
-        if (e.trace != null)
+        try
             {
-            System.out.println("has trace");
+            new LetterGrouper(sb).append(s);
             }
-        else
+        catch (IOException e)
             {
-            System.out.println("no trace");
+            // StringBuilder does not throw
+            throw new IllegalStateException(e);
             }
+        return sb.toString();
+        }
 
-        System.out.println(groupBy("abcdefghijklmnop", 5, ' '));
-
-        System.out.println(e.encode("Enigma Revealed!"));
+    /*
+     * Command line file encryption - see EnigmaCommand.
+     */
+    public static void main(String[] args)
+        {
+        EnigmaCommand.main(args);
         }
 
     }
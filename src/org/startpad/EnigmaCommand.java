@@ -0,0 +1,300 @@
+/*
+  EnigmaCommand.java - Command line file encryption.
+
+  Encrypts (or, the machine being reciprocal, decrypts) a file or stdin
+  under a key given on the command line.  Files are read through memory
+  mapped windows and written through a reused buffer, so nothing is copied
+  into Strings; letters go through a CompiledEnigma and, when grouping,
+  a LetterGrouper.
+
+  Input is treated as ASCII/Latin-1 bytes: A-Z and a-z are encrypted (as
+  upper case), all other bytes are passed through unchanged - the same
+  output Enigma.encode gives for ASCII text.
+
+ */
+
+package org.startpad;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class EnigmaCommand
+    {
+    static final int MAP_WINDOW = 1 << 26;
+    static final int BUFFER_SIZE = 1 << 16;
+    static final int GROUP_SIZE = 5;
+    static final int GROUPS_PER_LINE = 10;
+
+    private static final String USAGE =
+        "Usage: enigma [options] [input|- [output]]\n"
+        + "  -r, --rotors I,II,III   rotor order, left to right (I-VIII, and\n"
+        + "                          Beta or Gamma first for a four rotor M4)\n"
+        + "  -u, --reflector B       reflector (B or C; B-Thin or C-Thin for M4;\n"
+        + "                          D:AC BZ ... for a rewired UKW-D)\n"
+        + "  -g, --rings AAA         ring settings, one per rotor\n"
+        + "  -p, --position MCK      start position, one per rotor\n"
+        + "  -s, --plugs \"AB CD\"     plugboard pairs\n"
+        + "  -5, --group             letters only, in groups of five\n"
+        + "  -q, --quiet             no throughput report\n"
+        + "  -d, --decrypt           same as encrypt (Enigma is reciprocal)\n"
+        + "  -w, --wheels FILE       more rotors and reflectors (see RotorCatalog)\n";
+
+    CompiledEnigma machine;
+    LetterGrouper grouper;
+    long cLetters;
+    long cbIn;
+    long cbOut;
+
+    ByteBuffer bufOut = ByteBuffer.allocate(BUFFER_SIZE);
+    WritableByteChannel out;
+
+    public EnigmaCommand(Enigma.Settings settings, boolean fGroup)
+        {
+        this.machine = new CompiledEnigma(settings);
+        if (fGroup)
+            this.grouper = new LetterGrouper(new ByteSink(), GROUP_SIZE, ' ', GROUPS_PER_LINE);
+        }
+
+    /*
+     * Lets the LetterGrouper write (ASCII) straight into the output buffer.
+     */
+    class ByteSink implements Appendable
+        {
+        public Appendable append(char ch) throws IOException
+            {
+            put((byte) ch);
+            return this;
+            }
+
+        public Appendable append(CharSequence s) throws IOException
+            {
+            return append(s, 0, s.length());
+            }
+
+        public Appendable append(CharSequence s, int start, int end) throws IOException
+            {
+            for (int i = start; i < end; i++)
+                put((byte) s.charAt(i));
+            return this;
+            }
+        }
+
+    /*
+     * Encode the whole of in to out.  out is flushed but not closed.
+     */
+    public void encode(FileChannel in, WritableByteChannel out) throws IOException
+        {
+        this.out = out;
+
+        long cbFile = in.size();
+        for (long ib = in.position(); ib < cbFile; ib += MAP_WINDOW)
+            {
+            MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, ib,
+                    Math.min(MAP_WINDOW, cbFile - ib));
+            encodeBuffer(window);
+            }
+        finish();
+        }
+
+    public void encode(ReadableByteChannel in, WritableByteChannel out) throws IOException
+        {
+        this.out = out;
+
+        ByteBuffer bufIn = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while (in.read(bufIn) >= 0)
+            {
+            bufIn.flip();
+            encodeBuffer(bufIn);
+            bufIn.clear();
+            }
+        finish();
+        }
+
+    private void encodeBuffer(ByteBuffer in) throws IOException
+        {
+        this.cbIn += in.remaining();
+
+        while (in.hasRemaining())
+            {
+            byte b = in.get();
+            int i = Enigma.LATIN1_LETTERS[b & 0xFF];
+
+            if (i < 0)
+                {
+                if (this.grouper == null)
+                    put(b);
+                continue;
+                }
+
+            char chOut = (char) ('A' + this.machine.encodeIndex(i));
+            if (this.grouper == null)
+                put((byte) chOut);
+            else
+                this.grouper.append(chOut);
+            this.cLetters++;
+            }
+        }
+
+    private void put(byte b) throws IOException
+        {
+        if (!this.bufOut.hasRemaining())
+            flush();
+        this.bufOut.put(b);
+        }
+
+    private void finish() throws IOException
+        {
+        if (this.grouper != null)
+            this.grouper.finish();
+        flush();
+        }
+
+    private void flush() throws IOException
+        {
+        this.bufOut.flip();
+        this.cbOut += this.bufOut.remaining();
+        while (this.bufOut.hasRemaining())
+            this.out.write(this.bufOut);
+        this.bufOut.clear();
+        }
+
+    public static void main(String[] args)
+        {
+        Enigma.Settings settings = new Enigma.Settings();
+        boolean fGroup = false;
+        boolean fQuiet = false;
+        String sIn = null;
+        String sOut = null;
+
+        try
+            {
+            for (int i = 0; i < args.length; i++)
+                {
+                String arg = args[i];
+
+                if (arg.equals("-r") || arg.equals("--rotors"))
+                    {
+                    settings.rotors = argValue(args, ++i).toUpperCase().split("[,\\s]+");
+                    if (settings.rotors.length != 3 && settings.rotors.length != 4)
+                        throw new IllegalArgumentException("Expected three or four rotors: "
+                                + args[i]);
+                    }
+                else if (arg.equals("-u") || arg.equals("--reflector"))
+                    settings.reflector = argValue(args, ++i).toUpperCase();
+                else if (arg.equals("-g") || arg.equals("--rings"))
+                    settings.rings = letters(argValue(args, ++i));
+                else if (arg.equals("-p") || arg.equals("--position"))
+                    settings.position = letters(argValue(args, ++i));
+                else if (arg.equals("-s") || arg.equals("--plugs"))
+                    settings.plugs = argValue(args, ++i);
+                else if (arg.equals("-5") || arg.equals("--group"))
+                    fGroup = true;
+                else if (arg.equals("-q") || arg.equals("--quiet"))
+                    fQuiet = true;
+                else if (arg.equals("-d") || arg.equals("--decrypt"))
+                    continue;
+                else if (arg.equals("-w") || arg.equals("--wheels"))
+                    RotorCatalog.load(new File(argValue(args, ++i)));
+                else if (arg.equals("-h") || arg.equals("--help"))
+                    {
+                    System.out.print(USAGE);
+                    return;
+                    }
+                else if (arg.startsWith("-") && arg.length() > 1)
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+                else if (sIn == null)
+                    sIn = arg;
+                else if (sOut == null)
+                    sOut = arg;
+                else
+                    throw new IllegalArgumentException("Unexpected argument: " + arg);
+                }
+
+            EnigmaCommand command = new EnigmaCommand(settings, fGroup);
+            long nsStart = System.nanoTime();
+            command.run(sIn, sOut);
+            long ns = System.nanoTime() - nsStart;
+
+            if (!fQuiet)
+                command.report(System.err, ns);
+            }
+        catch (IllegalArgumentException e)
+            {
+            System.err.println("enigma: " + e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            }
+        catch (IOException e)
+            {
+            System.err.println("enigma: " + e.getMessage());
+            System.exit(1);
+            }
+        }
+
+    void run(String sIn, String sOut) throws IOException
+        {
+        FileInputStream streamIn = null;
+        FileOutputStream streamOut = null;
+
+        try
+            {
+            WritableByteChannel channelOut;
+            if (sOut == null || sOut.equals("-"))
+                channelOut = Channels.newChannel(System.out);
+            else
+                {
+                streamOut = new FileOutputStream(sOut);
+                channelOut = streamOut.getChannel();
+                }
+
+            if (sIn == null || sIn.equals("-"))
+                encode(Channels.newChannel(System.in), channelOut);
+            else
+                {
+                streamIn = new FileInputStream(sIn);
+                encode(streamIn.getChannel(), channelOut);
+                }
+
+            System.out.flush();
+            }
+        finally
+            {
+            if (streamIn != null)
+                streamIn.close();
+            if (streamOut != null)
+                streamOut.close();
+            }
+        }
+
+    void report(PrintStream ps, long ns)
+        {
+        double sec = ns / 1e9;
+        ps.println(String.format("enigma: %d bytes in, %d bytes out, %d letters in %.3f s (%.1f MB/s)",
+                this.cbIn, this.cbOut, this.cLetters, sec, this.cbIn / 1e6 / Math.max(sec, 1e-9)));
+        ps.println(String.format("enigma: key tables built in %.1f ms", this.machine.buildNanos() / 1e6));
+        }
+
+    private static String argValue(String[] args, int i)
+        {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        return args[i];
+        }
+
+    private static char[] letters(String s)
+        {
+        s = s.toUpperCase().replaceAll("[^A-Z]", "");
+        if (s.length() != 3 && s.length() != 4)
+            throw new IllegalArgumentException("Expected three or four letters: " + s);
+        return s.toCharArray();
+        }
+    }
@@ -0,0 +1,226 @@
+/*
+  EnigmaKey.java - Immutable, pre-validated key (all of Settings but the
+  start position).
+
+  A key is two independently cached parts: the wheels (rotor order,
+  reflector and rings) and the plugboard.  Enigma.init() gets its key
+  here, so re-initialising with the same Settings - or changing only the
+  positions - does no parsing or validation at all, and changing only the
+  plugboard re-uses the wheels (and vice versa).
+
+  Both caches are small LRUs shared by all machines and threads.  The
+  wheels also hold the per-rotor substitution tables (rings folded in)
+  that Enigma.scramble() runs on - references to the tables each rotor
+  interns per ring (see RotorCatalog), so a new key copies nothing.
+
+ */
+
+package org.startpad;
+
+public class EnigmaKey
+    {
+    static final int CACHE_SIZE = 64;
+
+    static LruCache<String, Wheels> wheelsCache = new LruCache<String, Wheels>(CACHE_SIZE);
+    static LruCache<String, Plugboard> plugboardCache = new LruCache<String, Plugboard>(CACHE_SIZE);
+
+    /*
+     * Rotor order, reflector and rings, and the tables the machine encodes
+     * with.  The last three rotors step; a four rotor (M4) key has a Greek
+     * wheel in front of them, which never moves, and a thin reflector.
+     */
+    static class Wheels
+        {
+        final Enigma.Rotor[] rotors = new Enigma.Rotor[3];
+        final Enigma.Rotor reflector;
+        final int[] rings = new int[3];
+        final Enigma.Rotor greek;
+        final int ringGreek;
+
+        /*
+         * Letter out of stepping rotor r (0 left, 2 right) showing position p
+         * for letter i in, rings folded in: forward[r][p * 26 + i].  reverse
+         * is the same for the return path.  The rows are the rotors' own
+         * interned tables, shared with every other key using them.
+         */
+        final byte[][] forward = new byte[3][];
+        final byte[][] reverse = new byte[3][];
+
+        /*
+         * The reflector, with the Greek wheel at position g folded in:
+         * reflect[g * 26 + i].  Just 26 entries with no Greek wheel.
+         */
+        final byte[] reflect;
+
+        Wheels(String[] rotors, String reflector, char[] rings)
+            {
+            if (rotors.length < 3 || rotors.length > 4 || rings.length != rotors.length)
+                throw new IllegalArgumentException(
+                        "Expected three or four rotors and as many rings.");
+
+            int cFixed = rotors.length - 3;
+            for (int i = 0; i < 3; i++)
+                {
+                this.rotors[i] = rotor(rotors[cFixed + i], Enigma.Rotor.Kind.ROTOR, "a stepping rotor");
+                this.rings[i] = Enigma.iFromSetting(rings[cFixed + i], "ring");
+                }
+
+            if (cFixed == 0)
+                {
+                this.greek = null;
+                this.ringGreek = 0;
+                this.reflector = rotor(reflector, Enigma.Rotor.Kind.REFLECTOR,
+                        "the reflector of a three rotor machine");
+                }
+            else
+                {
+                this.greek = rotor(rotors[0], Enigma.Rotor.Kind.GREEK, "the fourth rotor");
+                this.ringGreek = Enigma.iFromSetting(rings[0], "ring");
+                this.reflector = rotor(reflector, Enigma.Rotor.Kind.THIN_REFLECTOR,
+                        "the reflector of a four rotor machine");
+                }
+
+            for (int r = 0; r < 3; r++)
+                {
+                this.forward[r] = this.rotors[r].forward(this.rings[r]);
+                this.reverse[r] = this.rotors[r].reverse(this.rings[r]);
+                }
+
+            this.reflect = new byte[this.greek == null ? 26 : 26 * 26];
+            for (int g = 0; g < this.reflect.length / 26; g++)
+                {
+                int o = (g - this.ringGreek + 26) % 26;
+                for (int i = 0; i < 26; i++)
+                    {
+                    int j = i;
+                    if (this.greek != null)
+                        j = (j + this.greek.map[(j + o) % 26]) % 26;
+                    j = (j + this.reflector.map[j]) % 26;
+                    if (this.greek != null)
+                        j = (j + this.greek.mapReverse[(j + o) % 26]) % 26;
+                    this.reflect[g * 26 + i] = (byte) j;
+                    }
+                }
+            }
+
+        private static Enigma.Rotor rotor(String name, Enigma.Rotor.Kind kind, String sRole)
+            {
+            Enigma.Rotor rotor = Enigma.rotorFromName(name);
+            if (rotor.kind != kind)
+                throw new IllegalArgumentException(name + " cannot be used as " + sRole + ".");
+            return rotor;
+            }
+        }
+
+    /*
+     * Normalised plug pairs and the letter map they give.
+     */
+    static class Plugboard
+        {
+        final String plugs;
+        final int[] mapPlugs = new int[26];
+
+        Plugboard(String plugs)
+            {
+            plugs = plugs.toUpperCase().replaceAll("[^A-Z]", "");
+            if (plugs.length() % 2 == 1)
+                throw new IllegalArgumentException(
+                        "Plugboard settings must have an even number of letters.");
+
+            for (int i = 0; i < 26; i++)
+                this.mapPlugs[i] = i;
+
+            for (int i = 0; i < plugs.length(); i += 2)
+                {
+                int iFrom = Enigma.iFromCh(plugs.charAt(i));
+                int iTo = Enigma.iFromCh(plugs.charAt(i + 1));
+
+                if (this.mapPlugs[iFrom] != iFrom)
+                    throw new IllegalArgumentException(
+                            "Redefinition of plug settings for " + Enigma.chFromI(iFrom));
+
+                if (this.mapPlugs[iTo] != iTo)
+                    throw new IllegalArgumentException(
+                            "Redefinition of plug setting for " + Enigma.chFromI(iTo));
+
+                this.mapPlugs[iFrom] = iTo;
+                this.mapPlugs[iTo] = iFrom;
+                }
+
+            this.plugs = plugs;
+            }
+        }
+
+    final Wheels wheels;
+    final Plugboard plugboard;
+
+    EnigmaKey(Wheels wheels, Plugboard plugboard)
+        {
+        this.wheels = wheels;
+        this.plugboard = plugboard;
+        }
+
+    /*
+     * The key for settings, from the caches where possible.  Throws
+     * IllegalArgumentException for unknown rotors, rings that are not
+     * letters or bad plugs.
+     */
+    public static EnigmaKey forSettings(Enigma.Settings settings)
+        {
+        return new EnigmaKey(wheels(settings.rotors, settings.reflector, settings.rings),
+                plugboard(settings.plugs));
+        }
+
+    /*
+     * Same wheels, different plugboard.
+     */
+    public EnigmaKey withPlugs(String plugs)
+        {
+        return new EnigmaKey(this.wheels, plugboard(plugs));
+        }
+
+    /*
+     * Same plugboard, different rotor order, reflector or rings.
+     */
+    public EnigmaKey withWheels(String[] rotors, String reflector, char[] rings)
+        {
+        return new EnigmaKey(wheels(rotors, reflector, rings), this.plugboard);
+        }
+
+    /*
+     * Normalised plug pairs, e.g. "ABCD".
+     */
+    public String plugs()
+        {
+        return this.plugboard.plugs;
+        }
+
+    static Wheels wheels(String[] rotors, String reflector, char[] rings)
+        {
+        StringBuilder sb = new StringBuilder(24);
+        sb.append(reflector);
+        for (int i = 0; i < rotors.length; i++)
+            sb.append(',').append(rotors[i]);
+        sb.append(',').append(rings);
+
+        String sKey = sb.toString();
+        Wheels wheels = wheelsCache.get(sKey);
+        if (wheels == null)
+            {
+            wheels = new Wheels(rotors, reflector, rings);
+            wheelsCache.put(sKey, wheels);
+            }
+        return wheels;
+        }
+
+    static Plugboard plugboard(String plugs)
+        {
+        Plugboard plugboard = plugboardCache.get(plugs);
+        if (plugboard == null)
+            {
+            plugboard = new Plugboard(plugs);
+            plugboardCache.put(plugs, plugboard);
+            }
+        return plugboard;
+        }
+    }
@@ -0,0 +1,153 @@
+/*
+  IncrementalEncoder.java - Re-encode only what changed in an edited message.
+
+  Keeps the last input, its encoding and its grouped encoding.  When the
+  input changes only the text from the first changed character onwards is
+  re-encoded; the outputs are truncated there and extended in place.
+
+  Since only letters step the rotors, the machine state at any input index
+  is just the number of letters before it.  Checkpoints hold that count
+  every CHECKPOINT_INTERVAL characters, and Enigma.seek() puts the rotors
+  there directly, so an edit at the end of a long message costs O(1)
+  rather than a full re-encode.
+
+ */
+
+package org.startpad;
+
+public class IncrementalEncoder
+    {
+    static final int CHECKPOINT_INTERVAL = 64;
+    static final int GROUP_SIZE = 5;
+
+    Enigma machine = new Enigma(null);
+    StringBuilder input = new StringBuilder();
+    StringBuilder output = new StringBuilder();
+    StringBuilder grouped = new StringBuilder();
+
+    // Letters before input index k * CHECKPOINT_INTERVAL
+    int[] checkpoints = new int[16];
+    int cLetters;
+
+    public IncrementalEncoder(Enigma.Settings settings)
+        {
+        setSettings(settings);
+        }
+
+    /*
+     * New key - the next update() re-encodes the whole input.
+     */
+    public void setSettings(Enigma.Settings settings)
+        {
+        this.machine.init(settings);
+        this.input.setLength(0);
+        this.output.setLength(0);
+        this.grouped.setLength(0);
+        this.cLetters = 0;
+        }
+
+    /*
+     * Bring the outputs up to date with text, re-encoding from the end of
+     * its common prefix with the previous input.
+     */
+    public void update(CharSequence text)
+        {
+        int iStart = Math.min(text.length(), this.input.length());
+
+        for (int i = 0; i < iStart; i++)
+            if (this.input.charAt(i) != text.charAt(i))
+                {
+                iStart = i;
+                break;
+                }
+
+        update(text, iStart);
+        }
+
+    /*
+     * Same, where the caller knows (e.g. from a TextWatcher) that nothing
+     * before iChanged differs from the previous input.
+     */
+    public void update(CharSequence text, int iChanged)
+        {
+        int cchText = text.length();
+        int iStart = Math.max(0, Math.min(Math.min(iChanged, cchText), this.input.length()));
+
+        int cLetters = lettersBefore(iStart);
+
+        this.input.setLength(iStart);
+        this.output.setLength(iStart);
+        this.grouped.setLength(cLetters == 0 ? 0 : cLetters + (cLetters - 1) / GROUP_SIZE);
+        this.machine.seek(cLetters);
+
+        for (int i = iStart; i < cchText; i++)
+            {
+            if (i % CHECKPOINT_INTERVAL == 0)
+                setCheckpoint(i / CHECKPOINT_INTERVAL, cLetters);
+
+            char ch = text.charAt(i);
+            char chOut = this.machine.encodeChar(ch);
+
+            this.input.append(ch);
+            this.output.append(chOut);
+
+            if (Enigma.isLetter(ch))
+                {
+                if (cLetters > 0 && cLetters % GROUP_SIZE == 0)
+                    this.grouped.append(' ');
+                this.grouped.append(chOut);
+                cLetters++;
+                }
+            }
+
+        this.cLetters = cLetters;
+        }
+
+    /*
+     * Encoding of the whole input, character for character.
+     */
+    public CharSequence getOutput()
+        {
+        return this.output;
+        }
+
+    /*
+     * Encoded letters in groups of five - the same as
+     * Enigma.groupLetters(getOutput()).
+     */
+    public CharSequence getGrouped()
+        {
+        return this.grouped;
+        }
+
+    public int letterCount()
+        {
+        return this.cLetters;
+        }
+
+    int lettersBefore(int i)
+        {
+        if (i == 0)
+            return 0;
+
+        // The last checkpoint strictly before i - always within the input.
+        int iCheckpoint = (i - 1) / CHECKPOINT_INTERVAL;
+        int cLetters = this.checkpoints[iCheckpoint];
+
+        for (int j = iCheckpoint * CHECKPOINT_INTERVAL; j < i; j++)
+            if (Enigma.isLetter(this.input.charAt(j)))
+                cLetters++;
+        return cLetters;
+        }
+
+    private void setCheckpoint(int iCheckpoint, int cLetters)
+        {
+        if (iCheckpoint >= this.checkpoints.length)
+            {
+            int[] checkpoints = new int[this.checkpoints.length * 2];
+            System.arraycopy(this.checkpoints, 0, checkpoints, 0, this.checkpoints.length);
+            this.checkpoints = checkpoints;
+            }
+        this.checkpoints[iCheckpoint] = cLetters;
+        }
+    }
@@ -0,0 +1,105 @@
+/*
+  LetterGrouper.java - Streaming letter grouping.
+
+  An Appendable filter that upper-cases its input, drops everything that
+  is not a letter and writes the letters to another Appendable in groups
+  ("QMJID OMZWZ JFJR"), optionally breaking lines every so many groups.
+  It works one character at a time with no intermediate Strings, so it can
+  sit directly after a streaming encoder:
+
+      machine.encode(message, new LetterGrouper(writer));
+
+ */
+
+package org.startpad;
+
+import java.io.IOException;
+
+public class LetterGrouper implements Appendable
+    {
+    Appendable out;
+    int cchGroup;
+    char chSeparator;
+    int cGroupsPerLine;
+    String sNewline = "\n";
+    long cLetters;
+
+    /*
+     * Groups of five separated by spaces, all on one line - as
+     * Enigma.groupLetters.
+     */
+    public LetterGrouper(Appendable out)
+        {
+        this(out, 5, ' ', 0);
+        }
+
+    /*
+     * cGroupsPerLine of zero means never break lines.
+     */
+    public LetterGrouper(Appendable out, int cchGroup, char chSeparator, int cGroupsPerLine)
+        {
+        if (cchGroup < 1)
+            throw new IllegalArgumentException("Group size must be positive: " + cchGroup);
+        if (cGroupsPerLine < 0)
+            throw new IllegalArgumentException("Groups per line must not be negative: "
+                    + cGroupsPerLine);
+
+        this.out = out;
+        this.cchGroup = cchGroup;
+        this.chSeparator = chSeparator;
+        this.cGroupsPerLine = cGroupsPerLine;
+        }
+
+    public void setNewline(String sNewline)
+        {
+        this.sNewline = sNewline;
+        }
+
+    public LetterGrouper append(char ch) throws IOException
+        {
+        ch = Character.toUpperCase(ch);
+
+        if (ch < 'A' || ch > 'Z')
+            return this;
+
+        if (this.cLetters > 0 && this.cLetters % this.cchGroup == 0)
+            {
+            if (this.cGroupsPerLine > 0
+                    && this.cLetters % ((long) this.cchGroup * this.cGroupsPerLine) == 0)
+                this.out.append(this.sNewline);
+            else
+                this.out.append(this.chSeparator);
+            }
+
+        this.out.append(ch);
+        this.cLetters++;
+        return this;
+        }
+
+    public LetterGrouper append(CharSequence s) throws IOException
+        {
+        return append(s, 0, s.length());
+        }
+
+    public LetterGrouper append(CharSequence s, int start, int end) throws IOException
+        {
+        for (int i = start; i < end; i++)
+            append(s.charAt(i));
+        return this;
+        }
+
+    /*
+     * End the last line, if lines are being broken and there was any
+     * output.
+     */
+    public void finish() throws IOException
+        {
+        if (this.cGroupsPerLine > 0 && this.cLetters > 0)
+            this.out.append(this.sNewline);
+        }
+
+    public long letterCount()
+        {
+        return this.cLetters;
+        }
+    }
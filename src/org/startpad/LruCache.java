@@ -0,0 +1,47 @@
+/*
+  LruCache.java - Small bounded least-recently-used map.
+
+ */
+
+package org.startpad;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class LruCache<K, V>
+    {
+    private LinkedHashMap<K, V> map;
+
+    LruCache(final int cMax)
+        {
+        this.map = new LinkedHashMap<K, V>(cMax * 4 / 3 + 1, 0.75f, true)
+            {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+                {
+                return size() > cMax;
+                }
+            };
+        }
+
+    synchronized V get(K key)
+        {
+        return this.map.get(key);
+        }
+
+    synchronized void put(K key, V value)
+        {
+        this.map.put(key, value);
+        }
+
+    synchronized int size()
+        {
+        return this.map.size();
+        }
+
+    synchronized void clear()
+        {
+        this.map.clear();
+        }
+    }
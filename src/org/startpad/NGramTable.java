@@ -0,0 +1,561 @@
+/*
+  NGramTable.java - Letter n-gram log probabilities for scoring trial
+  decryptions.
+
+  A table holds log10 of the probability of each of the 26^n n-grams
+  (n = 2 to 4), as fixed point shorts (thousandths), so a score is a sum
+  of integer lookups.  N-grams never seen in the training text get the
+  log probability of a hundredth of one occurrence.  Windows are indexed
+  by their letters in base 26, first letter most significant.
+
+  Training from a file maps it a chunk at a time; the quadgrams in each
+  chunk are counted in parallel and only the few letters either side of
+  each chunk boundary are stitched together afterwards.  Bigram and
+  trigram counts are summed from the quadgram counts, so one pass gives
+  every order, exactly as a sequential count would.
+
+  Tables are saved as a 16 byte header (magic, version, n, scale) and
+  the 26^n scores, big-endian - 914K for quadgrams.  map() reads one
+  straight from a read-only memory mapping, so every thread (and every
+  process on the machine) shares a single copy in the page cache.
+
+ */
+
+package org.startpad;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class NGramTable
+    {
+    public static final int SCALE = 1000;
+
+    static final int MAGIC = 0x4E47524D; // "NGRM"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+
+    static final int QUADS = 26 * 26 * 26 * 26;
+
+    // Bytes of corpus mapped and counted per task.
+    static final int CHUNK = 1 << 24;
+
+    final int n;
+    final int cWindows;
+    ShortBuffer scores;
+
+    NGramTable(int n)
+        {
+        this(n, ShortBuffer.allocate(windows(n)));
+        }
+
+    NGramTable(int n, ShortBuffer scores)
+        {
+        this.n = n;
+        this.cWindows = windows(n);
+        this.scores = scores;
+        }
+
+    static int windows(int n)
+        {
+        if (n < 2 || n > 4)
+            throw new IllegalArgumentException("N-grams must be 2 to 4 letters: " + n);
+        return (int) Math.pow(26, n);
+        }
+
+    /*
+     * Table trained on the letters of text (anything else is skipped).
+     */
+    public static NGramTable train(int n, CharSequence text)
+        {
+        NGramTable table = new NGramTable(n);
+        long[] counts = new long[table.cWindows];
+        int iWindow = 0;
+        int cLetters = 0;
+
+        for (int i = 0; i < text.length(); i++)
+            {
+            int i26 = Enigma.letterIndex(text.charAt(i));
+            if (i26 < 0)
+                continue;
+            iWindow = (iWindow * 26 + i26) % table.cWindows;
+            if (++cLetters >= n)
+                counts[iWindow]++;
+            }
+
+        table.setCounts(counts);
+        return table;
+        }
+
+    public static NGramTable[] train(File corpus, int... orders) throws IOException
+        {
+        return train(corpus, ParallelEncoder.defaultExecutor(), orders);
+        }
+
+    /*
+     * A table of each order from a Latin-1 (or ASCII) corpus file, counted
+     * in parallel on executor.  Letters outside A-Z after upper-casing -
+     * including the bytes of multi-byte UTF-8 letters - are skipped.
+     */
+    public static NGramTable[] train(File corpus, ExecutorService executor, int... orders)
+            throws IOException
+        {
+        RandomAccessFile file = new RandomAccessFile(corpus, "r");
+        try
+            {
+            final FileChannel channel = file.getChannel();
+            final long cb = channel.size();
+            int cChunks = (int) ((cb + CHUNK - 1) / CHUNK);
+
+            List<Chunk> chunks = new ArrayList<Chunk>(cChunks);
+            for (int iChunk = 0; iChunk < cChunks; iChunk++)
+                {
+                final long ibStart = (long) iChunk * CHUNK;
+                chunks.add(new Chunk()
+                    {
+                    ByteBuffer letters() throws IOException
+                        {
+                        return channel.map(FileChannel.MapMode.READ_ONLY, ibStart,
+                                Math.min(CHUNK, cb - ibStart));
+                        }
+                    });
+                }
+            return train(chunks, executor, orders);
+            }
+        finally
+            {
+            file.close();
+            }
+        }
+
+    /*
+     * As train(File, ...) for the bytes from position to limit of corpus.
+     */
+    public static NGramTable[] train(ByteBuffer corpus, ExecutorService executor, int... orders)
+        {
+        return train(corpus, executor, CHUNK, orders);
+        }
+
+    static NGramTable[] train(ByteBuffer corpus, ExecutorService executor, int cbChunk, int[] orders)
+        {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (int ib = corpus.position(); ib < corpus.limit(); ib += cbChunk)
+            {
+            ByteBuffer slice = corpus.duplicate();
+            slice.position(ib);
+            slice.limit((int) Math.min((long) ib + cbChunk, corpus.limit()));
+            final ByteBuffer letters = slice.slice();
+            chunks.add(new Chunk()
+                {
+                ByteBuffer letters()
+                    {
+                    return letters;
+                    }
+                });
+            }
+
+        try
+            {
+            return train(chunks, executor, orders);
+            }
+        catch (IOException e)
+            {
+            throw new RuntimeException(e);
+            }
+        }
+
+    private static NGramTable[] train(List<Chunk> chunks, ExecutorService executor, int[] orders)
+            throws IOException
+        {
+        if (orders.length == 0)
+            throw new IllegalArgumentException("No n-gram orders to train.");
+
+        NGramTable[] tables = new NGramTable[orders.length];
+        for (int k = 0; k < orders.length; k++)
+            tables[k] = new NGramTable(orders[k]);
+
+        // Workers count the quadgrams of chunks round robin, each into its
+        // own array.
+        int cWorkers = Math.max(1, Math.min(chunks.size(), Runtime.getRuntime().availableProcessors()));
+        List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>(cWorkers);
+        for (int iWorker = 0; iWorker < cWorkers; iWorker++)
+            tasks.add(new Worker(chunks, iWorker, cWorkers));
+
+        long[] quads = null;
+        try
+            {
+            for (Future<long[]> result : executor.invokeAll(tasks))
+                {
+                long[] worker = result.get();
+                if (quads == null)
+                    quads = worker;
+                else
+                    for (int i = 0; i < QUADS; i++)
+                        quads[i] += worker[i];
+                }
+            }
+        catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted during n-gram training", e);
+            }
+        catch (ExecutionException e)
+            {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException("N-gram training failed", e.getCause());
+            }
+
+        // Quadgrams spanning chunk boundaries: the last letters so far (at
+        // most 3) followed by each chunk's first letters.  The first three
+        // letters of the corpus are kept too.
+        int[] first = new int[3];
+        long cLetters = 0;
+        int carry = 0;
+        for (Chunk chunk : chunks)
+            {
+            for (int i = 0; i < chunk.cHead; i++)
+                {
+                carry = carry * 26 + chunk.head[i];
+                if (cLetters + i < 3)
+                    first[(int) cLetters + i] = chunk.head[i];
+                else
+                    quads[carry % QUADS]++;
+                }
+
+            carry = chunk.cLetters >= 3 ? chunk.tail : carry % (26 * 26 * 26);
+            cLetters += chunk.cLetters;
+            }
+
+        // A shorter n-gram ends every quadgram, so its counts are the sums
+        // of theirs - plus those ending in the first three letters.
+        for (int k = 0; k < orders.length; k++)
+            {
+            NGramTable table = tables[k];
+            long[] counts = new long[table.cWindows];
+
+            for (int i = 0; i < QUADS; i++)
+                counts[i % table.cWindows] += quads[i];
+
+            for (int iLast = table.n - 1; iLast < Math.min(3, cLetters); iLast++)
+                {
+                int iWindow = 0;
+                for (int i = iLast - table.n + 1; i <= iLast; i++)
+                    iWindow = iWindow * 26 + first[i];
+                counts[iWindow]++;
+                }
+
+            table.setCounts(counts);
+            }
+        return tables;
+        }
+
+    /*
+     * A piece of corpus, with the letters needed to join it to its
+     * neighbours once counted.
+     */
+    abstract static class Chunk
+        {
+        int[] head = new int[3];
+        int cHead;
+        int tail;
+        long cLetters;
+
+        abstract ByteBuffer letters() throws IOException;
+        }
+
+    static class Worker implements Callable<long[]>
+        {
+        List<Chunk> chunks;
+        int iFirst;
+        int iStride;
+
+        Worker(List<Chunk> chunks, int iFirst, int iStride)
+            {
+            this.chunks = chunks;
+            this.iFirst = iFirst;
+            this.iStride = iStride;
+            }
+
+        public long[] call() throws IOException
+            {
+            long[] quads = new long[QUADS];
+
+            for (int iChunk = this.iFirst; iChunk < this.chunks.size(); iChunk += this.iStride)
+                {
+                Chunk chunk = this.chunks.get(iChunk);
+                ByteBuffer bytes = chunk.letters();
+                int iWindow = 0;
+                long cLetters = 0;
+
+                for (int ib = bytes.position(); ib < bytes.limit(); ib++)
+                    {
+                    int i26 = Enigma.LATIN1_LETTERS[bytes.get(ib) & 0xFF];
+                    if (i26 < 0)
+                        continue;
+
+                    iWindow = (iWindow * 26 + i26) % QUADS;
+                    if (++cLetters > 3)
+                        quads[iWindow]++;
+                    else
+                        chunk.head[chunk.cHead++] = i26;
+                    }
+
+                chunk.cLetters = cLetters;
+                chunk.tail = iWindow % (26 * 26 * 26);
+                }
+            return quads;
+            }
+        }
+
+    void setCounts(long[] counts)
+        {
+        long cTotal = 0;
+        for (long c : counts)
+            cTotal += c;
+        if (cTotal == 0)
+            throw new IllegalArgumentException("No " + this.n + "-grams in the training text.");
+
+        double logTotal = Math.log10(cTotal);
+        for (int i = 0; i < this.cWindows; i++)
+            {
+            double log = Math.log10(counts[i] == 0 ? 0.01 : counts[i]) - logTotal;
+            this.scores.put(i, (short) Math.max(Short.MIN_VALUE, Math.round(log * SCALE)));
+            }
+        }
+
+    /*
+     * Table from a file written by save(), mapped read-only (the file
+     * can then be closed, moved or deleted; the mapping stays valid).
+     */
+    public static NGramTable map(File file) throws IOException
+        {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+            {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_BYTES)
+                throw new IOException(file + " is not an n-gram table.");
+
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int n = header(mapped.getInt(0), mapped.getInt(4), mapped.getInt(8), mapped.getInt(12),
+                    channel.size(), file.toString());
+            mapped.position(HEADER_BYTES);
+            return new NGramTable(n, mapped.slice().asShortBuffer());
+            }
+        finally
+            {
+            raf.close();
+            }
+        }
+
+    /*
+     * Table read onto the heap from a stream in the save() format - e.g.
+     * a resource or Android asset, which cannot be mapped.
+     */
+    public static NGramTable read(InputStream in) throws IOException
+        {
+        DataInputStream data = new DataInputStream(in);
+        int magic = data.readInt();
+        int version = data.readInt();
+        int n = data.readInt();
+        int scale = data.readInt();
+        n = header(magic, version, n, scale, -1, "Stream");
+
+        NGramTable table = new NGramTable(n);
+        for (int i = 0; i < table.cWindows; i++)
+            table.scores.put(i, data.readShort());
+        return table;
+        }
+
+    private static int header(int magic, int version, int n, int scale, long cb, String sWhere)
+            throws IOException
+        {
+        if (magic != MAGIC)
+            throw new IOException(sWhere + " is not an n-gram table.");
+        if (version != VERSION)
+            throw new IOException(sWhere + " is n-gram table version " + version);
+        if (n < 2 || n > 4 || scale != SCALE)
+            throw new IOException(sWhere + " has an unsupported n-gram table (n=" + n + ").");
+        if (cb >= 0 && cb != HEADER_BYTES + 2L * windows(n))
+            throw new IOException(sWhere + " is truncated.");
+        return n;
+        }
+
+    public void save(File file) throws IOException
+        {
+        OutputStream out = new FileOutputStream(file);
+        try
+            {
+            write(out);
+            }
+        finally
+            {
+            out.close();
+            }
+        }
+
+    public void write(OutputStream out) throws IOException
+        {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(this.n);
+        data.writeInt(SCALE);
+        for (int i = 0; i < this.cWindows; i++)
+            data.writeShort(this.scores.get(i));
+        data.flush();
+        }
+
+    /*
+     * Build bigram, trigram and quadgram files from a corpus:
+     *
+     *   java org.startpad.NGramTable corpus.txt [prefix]
+     *
+     * writes prefix2.ngr, prefix3.ngr and prefix4.ngr (prefix defaults to
+     * "ngrams").
+     */
+    public static void main(String[] args) throws IOException
+        {
+        if (args.length < 1 || args.length > 2)
+            {
+            System.err.println("Usage: NGramTable corpus [prefix]");
+            System.exit(2);
+            }
+
+        String sPrefix = args.length > 1 ? args[1] : "ngrams";
+        long nsStart = System.nanoTime();
+        NGramTable[] tables = train(new File(args[0]), 2, 3, 4);
+
+        for (NGramTable table : tables)
+            {
+            File file = new File(sPrefix + table.n + ".ngr");
+            table.save(file);
+            System.out.println(file + ": " + file.length() + " bytes");
+            }
+        System.out.println(String.format("Trained in %.1f s", (System.nanoTime() - nsStart) / 1e9));
+        System.exit(0);
+        }
+
+    public int order()
+        {
+        return this.n;
+        }
+
+    /*
+     * Score (log10 probability times SCALE) of the window with index
+     * iWindow.
+     */
+    public int window(int iWindow)
+        {
+        return this.scores.get(iWindow);
+        }
+
+    /*
+     * Sum of the scores of every window in letters (indices 0-25) from off
+     * to off + len.
+     */
+    public int score(byte[] letters, int off, int len)
+        {
+        ShortBuffer scores = this.scores;
+        int n = Math.min(this.n, len);
+        int cWindows = this.cWindows;
+        int score = 0;
+        int iWindow = 0;
+
+        for (int i = 0; i < n; i++)
+            iWindow = iWindow * 26 + letters[off + i];
+        if (n == this.n)
+            score = scores.get(iWindow);
+
+        // Drop the oldest letter by subtraction rather than a modulus.
+        for (int i = n; i < len; i++)
+            {
+            iWindow = iWindow * 26 + letters[off + i] - letters[off + i - n] * cWindows;
+            score += scores.get(iWindow);
+            }
+        return score;
+        }
+
+    /*
+     * Running score of a stream of letter indices, fed one at a time -
+     * e.g. straight from a trial decryption - without allocating.  The
+     * last n letters are also kept packed five bits each, so the oldest
+     * can be subtracted out of the window index.
+     */
+    public static class Rolling
+        {
+        NGramTable table;
+        int iWindow;
+        int packed;
+        int cLetters;
+        long score;
+
+        public Rolling(NGramTable table)
+            {
+            this.table = table;
+            }
+
+        public void reset()
+            {
+            this.iWindow = 0;
+            this.packed = 0;
+            this.cLetters = 0;
+            this.score = 0;
+            }
+
+        /*
+         * Add letter index i26; returns the score of the window it
+         * completes (0 until there are n letters).
+         */
+        public int add(int i26)
+            {
+            NGramTable table = this.table;
+            int shift = 5 * (table.n - 1);
+
+            this.iWindow = this.iWindow * 26 + i26 - (this.packed >>> shift) * table.cWindows;
+            this.packed = ((this.packed << 5) | i26) & ((1 << (shift + 5)) - 1);
+            if (++this.cLetters < table.n)
+                return 0;
+
+            int score = table.scores.get(this.iWindow);
+            this.score += score;
+            return score;
+            }
+
+        public long score()
+            {
+            return this.score;
+            }
+
+        public int letters()
+            {
+            return this.cLetters;
+            }
+
+        /*
+         * Score per window so far, comparable between texts of different
+         * lengths.
+         */
+        public double mean()
+            {
+            int cWindows = this.cLetters - this.table.n + 1;
+            return cWindows <= 0 ? 0 : (double) this.score / cWindows;
+            }
+        }
+    }
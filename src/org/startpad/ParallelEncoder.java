@@ -0,0 +1,167 @@
+/*
+  ParallelEncoder.java - Encode very large messages on many threads.
+
+  The input is cut into fixed size chunks.  The letters in each chunk are
+  counted (in parallel), a running total gives each chunk's starting offset
+  in key presses, and each chunk is then encoded by its own copy of the
+  machine moved directly to that offset with Enigma.advance().  Non-letters
+  do not step the rotors, so the output is identical to Enigma.encode.
+
+  The executor may be any ExecutorService - a ForkJoinPool where one is
+  available, or the shared fixed pool returned by defaultExecutor().
+
+ */
+
+package org.startpad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+public class ParallelEncoder
+    {
+    public static final int DEFAULT_CHUNK = 1 << 16;
+
+    private static ExecutorService executorDefault;
+
+    /*
+     * Encode s starting from the machine's current position, leaving the
+     * machine stepped past the end of the message (as Enigma.encode does).
+     */
+    public static String encode(Enigma machine, String s)
+        {
+        return encode(machine, s, defaultExecutor());
+        }
+
+    public static String encode(Enigma machine, String s, ExecutorService executor)
+        {
+        char[] ach = new char[s.length()];
+
+        s.getChars(0, ach.length, ach, 0);
+        encode(machine, ach, 0, ach.length, ach, 0, executor, DEFAULT_CHUNK);
+        return new String(ach);
+        }
+
+    public static void encode(final Enigma machine, final char[] in, final int off, int len,
+            final char[] out, final int outOff, ExecutorService executor, int cchChunk)
+        {
+        if (cchChunk <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive: " + cchChunk);
+
+        final int cChunks = (len + cchChunk - 1) / cchChunk;
+
+        if (cChunks <= 1)
+            {
+            machine.encode(in, off, len, out, outOff);
+            return;
+            }
+
+        final int[] aStart = new int[cChunks + 1];
+        for (int i = 0; i < cChunks; i++)
+            aStart[i] = off + i * cchChunk;
+        aStart[cChunks] = off + len;
+
+        // Pass 1: letters (key presses) per chunk.
+        List<Callable<Integer>> counts = new ArrayList<Callable<Integer>>(cChunks);
+        for (int iChunk = 0; iChunk < cChunks; iChunk++)
+            {
+            final int iFirst = aStart[iChunk];
+            final int iLim = aStart[iChunk + 1];
+            counts.add(new Callable<Integer>()
+                {
+                public Integer call()
+                    {
+                    int cLetters = 0;
+                    for (int i = iFirst; i < iLim; i++)
+                        if (Enigma.isLetter(in[i]))
+                            cLetters++;
+                    return cLetters;
+                    }
+                });
+            }
+
+        List<Future<Integer>> results = invokeAll(executor, counts);
+
+        final long[] aOffset = new long[cChunks + 1];
+        for (int iChunk = 0; iChunk < cChunks; iChunk++)
+            aOffset[iChunk + 1] = aOffset[iChunk] + get(results.get(iChunk));
+
+        // Pass 2: each chunk on its own machine, seeked to its first letter.
+        List<Callable<Integer>> encodes = new ArrayList<Callable<Integer>>(cChunks);
+        for (int iChunk = 0; iChunk < cChunks; iChunk++)
+            {
+            final int iFirst = aStart[iChunk];
+            final int cch = aStart[iChunk + 1] - iFirst;
+            final long cPresses = aOffset[iChunk];
+            encodes.add(new Callable<Integer>()
+                {
+                public Integer call()
+                    {
+                    Enigma chunkMachine = machine.copy();
+                    chunkMachine.advance(cPresses);
+                    return chunkMachine.encode(in, iFirst, cch, out, outOff + iFirst - off);
+                    }
+                });
+            }
+
+        for (Future<Integer> result : invokeAll(executor, encodes))
+            get(result);
+
+        machine.advance(aOffset[cChunks]);
+        }
+
+    /*
+     * Shared pool of daemon threads, one per available processor.
+     */
+    public static synchronized ExecutorService defaultExecutor()
+        {
+        if (executorDefault == null)
+            executorDefault = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+                        {
+                        public Thread newThread(Runnable r)
+                            {
+                            Thread thread = new Thread(r, "enigma-encoder");
+                            thread.setDaemon(true);
+                            return thread;
+                            }
+                        });
+        return executorDefault;
+        }
+
+    private static <T> List<Future<T>> invokeAll(ExecutorService executor,
+            List<Callable<T>> tasks)
+        {
+        try
+            {
+            return executor.invokeAll(tasks);
+            }
+        catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while encoding", e);
+            }
+        }
+
+    private static <T> T get(Future<T> future)
+        {
+        try
+            {
+            return future.get();
+            }
+        catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while encoding", e);
+            }
+        catch (ExecutionException e)
+            {
+            throw new RuntimeException("Encoding failed", e.getCause());
+            }
+        }
+    }
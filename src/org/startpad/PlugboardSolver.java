@@ -0,0 +1,458 @@
+/*
+  PlugboardSolver.java - Hill-climbing plugboard recovery.
+
+  With the rotor order, reflector, rings and start position known (from
+  the Bombe or a rotor search) only the plugboard is missing.  For each
+  key press the scrambler (rotors and reflector) is a fixed permutation
+  S, so a letter c decrypts to P(S(P(c))) for plugboard P; the S tables
+  for the whole message are built once.
+
+  A climb starts from a plugboard and tries, for every pair of letters,
+  plugging them together (freeing their old partners, or plugging the old
+  partners to each other) or unplugging them, keeping any change that
+  raises the n-gram score of the trial decryption.  A change to P only
+  alters letters whose cipher letter or scrambler output is one of the
+  (at most four) re-plugged letters, so just those letters, and only the
+  n-gram windows that cover them, are re-scored - a move costs a pass of
+  bit tests over the message rather than a full decryption.
+
+  Several tables may be given - e.g. bigrams then trigrams - and each
+  climb runs with each table in turn from where the last left off: the
+  smoother, coarser statistics get close, the finer ones finish.
+
+  Restarts from random plugboards (the first from the plugs already in
+  the Settings) run as tasks on the executor, each with its own seeded
+  random number generator; the best scoring plugboard is returned.
+
+ */
+
+package org.startpad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class PlugboardSolver
+    {
+    public static final int DEFAULT_PAIRS = 10;
+    public static final int DEFAULT_RESTARTS = 16;
+
+    byte[] cipher;
+    NGramTable[] ngrams;
+    int cMaxPairs = DEFAULT_PAIRS;
+    int cRestarts = DEFAULT_RESTARTS;
+    long seed = 1940;
+    volatile boolean fCancelled;
+    int scoreBest;
+
+    /*
+     * Climb with each of the tables in turn.
+     */
+    public PlugboardSolver(String ciphertext, NGramTable... ngrams)
+        {
+        if (ngrams.length == 0)
+            throw new IllegalArgumentException("Need at least one n-gram table.");
+
+        this.cipher = Bombe.indices(ciphertext);
+        for (NGramTable table : ngrams)
+            if (this.cipher.length < table.order())
+                throw new IllegalArgumentException("Ciphertext is shorter than one n-gram.");
+        this.ngrams = ngrams.clone();
+        }
+
+    /*
+     * Most plug pairs to try (the Wehrmacht used 10; at most 13).
+     */
+    public void setMaxPairs(int cMaxPairs)
+        {
+        if (cMaxPairs < 0 || cMaxPairs > 13)
+            throw new IllegalArgumentException("Plug pairs must be 0 to 13: " + cMaxPairs);
+        this.cMaxPairs = cMaxPairs;
+        }
+
+    public void setRestarts(int cRestarts)
+        {
+        if (cRestarts < 1)
+            throw new IllegalArgumentException("Must climb at least once.");
+        this.cRestarts = cRestarts;
+        }
+
+    public void setSeed(long seed)
+        {
+        this.seed = seed;
+        }
+
+    /*
+     * Stop the climb in progress; solve() returns the best plugboard found
+     * so far.  A later solve() starts afresh.
+     */
+    public void cancel()
+        {
+        this.fCancelled = true;
+        }
+
+    /*
+     * Score of the decryption under the last solution, by the last table.
+     */
+    public int score()
+        {
+        return this.scoreBest;
+        }
+
+    public Enigma.Settings solve(Enigma.Settings settings)
+        {
+        return solve(settings, ParallelEncoder.defaultExecutor());
+        }
+
+    /*
+     * Copy of settings with the plugboard that best decrypts the
+     * ciphertext.  Everything else in settings must already be right.
+     */
+    public Enigma.Settings solve(Enigma.Settings settings, ExecutorService executor)
+        {
+        this.fCancelled = false;
+
+        final int[] start = plugMap(settings);
+        final byte[] scrambled = scrambled(settings, this.cipher.length);
+
+        List<Callable<Climber>> tasks = new ArrayList<Callable<Climber>>(this.cRestarts);
+        for (int iRestart = 0; iRestart < this.cRestarts; iRestart++)
+            {
+            final Random random = new Random(this.seed + iRestart);
+            final boolean fRandomStart = iRestart > 0;
+            tasks.add(new Callable<Climber>()
+                {
+                public Climber call()
+                    {
+                    Climber climber = new Climber(scrambled, random);
+                    climber.start(fRandomStart ? null : start);
+                    for (NGramTable table : PlugboardSolver.this.ngrams)
+                        climber.climb(table);
+                    return climber;
+                    }
+                });
+            }
+
+        Climber best = null;
+        try
+            {
+            for (Future<Climber> result : executor.invokeAll(tasks))
+                {
+                Climber climber = result.get();
+                if (best == null || climber.score > best.score)
+                    best = climber;
+                }
+            }
+        catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted during plugboard search", e);
+            }
+        catch (ExecutionException e)
+            {
+            throw new RuntimeException("Plugboard search failed", e.getCause());
+            }
+
+        this.scoreBest = best.score;
+
+        Enigma.Settings solved = new Enigma.Settings();
+        solved.rotors = settings.rotors.clone();
+        solved.reflector = settings.reflector;
+        solved.rings = settings.rings.clone();
+        solved.position = settings.position.clone();
+        solved.plugs = plugs(best.plug);
+        return solved;
+        }
+
+    /*
+     * The scrambler output for each letter at each key press of a message
+     * of cLetters from settings, without the plugboard.
+     */
+    static byte[] scrambled(Enigma.Settings settings, int cLetters)
+        {
+        Enigma.Settings bare = new Enigma.Settings();
+        bare.rotors = settings.rotors;
+        bare.reflector = settings.reflector;
+        bare.rings = settings.rings;
+        bare.position = settings.position;
+
+        Enigma machine = new Enigma(null);
+        machine.init(bare);
+
+        byte[] scrambled = new byte[cLetters * 26];
+        for (int i = 0; i < cLetters; i++)
+            {
+            machine.incrementRotors();
+            for (int j = 0; j < 26; j++)
+                scrambled[i * 26 + j] = (byte) machine.scramble(j, machine.position);
+            }
+        return scrambled;
+        }
+
+    /*
+     * Partner of each letter on the settings' plugboard (validated by
+     * Enigma.init).
+     */
+    static int[] plugMap(Enigma.Settings settings)
+        {
+        Enigma machine = new Enigma(null);
+        machine.init(settings);
+        return machine.mapPlugs.clone();
+        }
+
+    static String plugs(int[] plug)
+        {
+        String s = "";
+        for (int a = 0; a < 26; a++)
+            if (plug[a] > a)
+                s += (s.length() > 0 ? " " : "") + Enigma.chFromI(a) + Enigma.chFromI(plug[a]);
+        return s;
+        }
+
+    /*
+     * One hill climb, keeping the trial decryption (and each letter's
+     * scrambler output) up to date as plugs change.
+     */
+    class Climber
+        {
+        byte[] scrambled;
+        Random random;
+        NGramTable ngrams;
+        int n;
+
+        int[] plug = new int[26];
+        int cPairs;
+        byte[] plain;
+        byte[] middle;
+        int score;
+
+        // Undo log of the last move
+        int[] undoPlug = new int[26];
+        int[] changed;
+        byte[] changedPlain;
+        byte[] changedMiddle;
+        int cChanged;
+
+        // Windows re-scored by a move, stamped to count each once
+        int[] windows;
+        int[] stamp;
+        int iStamp;
+
+        Climber(byte[] scrambled, Random random)
+            {
+            int cLetters = PlugboardSolver.this.cipher.length;
+
+            this.scrambled = scrambled;
+            this.random = random;
+            this.plain = new byte[cLetters];
+            this.middle = new byte[cLetters];
+            this.changed = new int[cLetters];
+            this.changedPlain = new byte[cLetters];
+            this.changedMiddle = new byte[cLetters];
+            this.windows = new int[cLetters];
+            this.stamp = new int[cLetters];
+            }
+
+        /*
+         * Start from plug (or a random plugboard if null).
+         */
+        void start(int[] plug)
+            {
+            if (plug != null)
+                System.arraycopy(plug, 0, this.plug, 0, 26);
+            else
+                {
+                for (int i = 0; i < 26; i++)
+                    this.plug[i] = i;
+
+                int[] letters = shuffled();
+                int cPairs = this.random.nextInt(PlugboardSolver.this.cMaxPairs + 1);
+                for (int i = 0; i < cPairs; i++)
+                    {
+                    this.plug[letters[2 * i]] = letters[2 * i + 1];
+                    this.plug[letters[2 * i + 1]] = letters[2 * i];
+                    }
+                }
+
+            this.cPairs = 0;
+            for (int i = 0; i < 26; i++)
+                if (this.plug[i] > i)
+                    this.cPairs++;
+
+            }
+
+        /*
+         * Decrypt and score from the current plugboard and climb until no
+         * move improves the score under ngrams.
+         */
+        void climb(NGramTable ngrams)
+            {
+            byte[] cipher = PlugboardSolver.this.cipher;
+            for (int i = 0; i < cipher.length; i++)
+                {
+                this.middle[i] = this.scrambled[i * 26 + this.plug[cipher[i]]];
+                this.plain[i] = (byte) this.plug[this.middle[i]];
+                }
+            this.ngrams = ngrams;
+            this.n = ngrams.order();
+            this.score = ngrams.score(this.plain, 0, this.plain.length);
+
+            boolean fImproved = true;
+
+            while (fImproved && !PlugboardSolver.this.fCancelled)
+                {
+                fImproved = false;
+                int[] letters = shuffled();
+                for (int i = 0; i < 26; i++)
+                    for (int j = i + 1; j < 26; j++)
+                        if (tryPair(letters[i], letters[j]))
+                            fImproved = true;
+                }
+            }
+
+        /*
+         * Try the moves that plug (or unplug) a and b; true if one was
+         * kept.
+         */
+        boolean tryPair(int a, int b)
+            {
+            int pa = this.plug[a];
+            int pb = this.plug[b];
+
+            if (pa == b)
+                return tryPlugs(a, a, b, b, -1, -1, -1, -1, -1);
+
+            // Pairs after plugging a-b and freeing the old partners.
+            int cPairs = this.cPairs + 1 - (pa != a ? 1 : 0) - (pb != b ? 1 : 0);
+            boolean fFreed = cPairs <= PlugboardSolver.this.cMaxPairs
+                    && tryPlugs(a, b, b, a, pa != a ? pa : -1, pa, pb != b ? pb : -1, pb, cPairs);
+            if (fFreed)
+                return true;
+
+            if (pa != a && pb != b)
+                return tryPlugs(a, b, b, a, pa, pb, pb, pa, this.cPairs);
+            return false;
+            }
+
+        /*
+         * Set letter x to partner px for up to four letters (a letter of
+         * -1 is unused), keeping the change if it improves the score.
+         * cPairs of -1 means unplugging one pair.
+         */
+        boolean tryPlugs(int x1, int p1, int x2, int p2, int x3, int p3, int x4, int p4, int cPairs)
+            {
+            System.arraycopy(this.plug, 0, this.undoPlug, 0, 26);
+
+            int mask = (1 << x1) | (1 << x2);
+            this.plug[x1] = p1;
+            this.plug[x2] = p2;
+            if (x3 >= 0)
+                {
+                mask |= 1 << x3;
+                this.plug[x3] = p3;
+                }
+            if (x4 >= 0)
+                {
+                mask |= 1 << x4;
+                this.plug[x4] = p4;
+                }
+
+            int delta = rescore(mask);
+            if (delta > 0)
+                {
+                this.score += delta;
+                this.cPairs = cPairs < 0 ? this.cPairs - 1 : cPairs;
+                return true;
+                }
+
+            System.arraycopy(this.undoPlug, 0, this.plug, 0, 26);
+            for (int k = 0; k < this.cChanged; k++)
+                {
+                int i = this.changed[k];
+                this.plain[i] = this.changedPlain[k];
+                this.middle[i] = this.changedMiddle[k];
+                }
+            return false;
+            }
+
+        /*
+         * Re-decrypt the letters touched by the letters in mask and
+         * return the change in score, logging the old letters for undo.
+         */
+        int rescore(int mask)
+            {
+            byte[] cipher = PlugboardSolver.this.cipher;
+            byte[] plain = this.plain;
+            byte[] middle = this.middle;
+            int[] plug = this.plug;
+            int cLetters = cipher.length;
+            int iLastWindow = cLetters - this.n;
+            int cWindows = 0;
+            int delta = 0;
+
+            this.cChanged = 0;
+            this.iStamp++;
+            for (int i = 0; i < cLetters; i++)
+                {
+                int c = cipher[i];
+                if ((((1 << c) | (1 << middle[i])) & mask) == 0)
+                    continue;
+
+                byte m = this.scrambled[i * 26 + plug[c]];
+                byte p = (byte) plug[m];
+                if (m == middle[i] && p == plain[i])
+                    continue;
+
+                this.changed[this.cChanged] = i;
+                this.changedPlain[this.cChanged] = plain[i];
+                this.changedMiddle[this.cChanged++] = middle[i];
+
+                if (p != plain[i])
+                    for (int w = Math.max(0, i - this.n + 1); w <= Math.min(i, iLastWindow); w++)
+                        if (this.stamp[w] != this.iStamp)
+                            {
+                            this.stamp[w] = this.iStamp;
+                            this.windows[cWindows++] = w;
+                            delta -= window(w);
+                            }
+                }
+
+            // Windows over later letters needed the old values, so the new
+            // ones go in a second pass.
+            for (int k = 0; k < this.cChanged; k++)
+                {
+                int i = this.changed[k];
+                middle[i] = this.scrambled[i * 26 + plug[cipher[i]]];
+                plain[i] = (byte) plug[middle[i]];
+                }
+
+            for (int k = 0; k < cWindows; k++)
+                delta += window(this.windows[k]);
+            return delta;
+            }
+
+        int window(int w)
+            {
+            int iWindow = 0;
+            for (int i = 0; i < this.n; i++)
+                iWindow = iWindow * 26 + this.plain[w + i];
+            return this.ngrams.window(iWindow);
+            }
+
+        int[] shuffled()
+            {
+            int[] letters = new int[26];
+            for (int i = 0; i < 26; i++)
+                {
+                int j = this.random.nextInt(i + 1);
+                letters[i] = letters[j];
+                letters[j] = i;
+                }
+            return letters;
+            }
+        }
+    }
@@ -0,0 +1,286 @@
+/*
+  RotorCatalog.java - Rotors and reflectors by name or id, loadable from
+  text.
+
+  Every wheel a machine can use is interned here once: the rotors and
+  reflectors of Enigma.rotorsBox and Enigma.rotorsNaval and any loaded
+  from a catalog file or resource.  Each gets a
+  small id, so lookup by name (a HashMap) or by id (an array) is O(1),
+  and each carries its own substitution tables for every ring setting,
+  built on first use and then shared - never copied - by every key and
+  machine that uses the wheel.
+
+  A catalog is text, one wheel per line: name, kind (rotor, greek,
+  reflector or thin), the 26 letters wired to A to Z, and any turnover
+  notches.  Blank lines and lines starting with # are skipped:
+
+      # name  kind       wiring                      notches
+      IX      rotor      QWERTZUIOASDFGHJKPYXCVBNML  HU
+      K       reflector  IMETCGFRAYSQBZXWLHKDVUPOJN
+
+  Names are not case sensitive and may not contain spaces.  Loading a
+  wheel that is already interned with the same wiring and notches is a
+  no-op; one that would redefine a name throws IllegalArgumentException.
+
+  The UKW-D reflector was rewired in the field.  Its sockets J and Y
+  (German labelling) are always joined; the other 24 form any 12 pairs,
+  given in the name after "D:" - e.g. "D:AC BZ DK EX FS GV HP IM LQ NR OW
+  TU".  Since D names can come from anywhere (a service request, say),
+  they are not interned: the most recently used wirings are kept in a
+  small LRU, under the name as given and under its pairs in a canonical
+  order, so any spelling of a wiring in use is the same wheel.  They have
+  no id.
+
+ */
+
+package org.startpad;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class RotorCatalog
+    {
+    static final String UKW_D_PREFIX = "D:";
+    static final int UKW_D_CACHE_SIZE = 64;
+
+    private static final HashMap<String, Enigma.Rotor> byName = new HashMap<String, Enigma.Rotor>();
+    private static final ArrayList<Enigma.Rotor> byId = new ArrayList<Enigma.Rotor>();
+    private static final LruCache<String, Enigma.Rotor> ukwDs = new LruCache<String, Enigma.Rotor>(
+            UKW_D_CACHE_SIZE);
+
+    static
+        {
+        for (Enigma.Rotor rotor : Enigma.rotorsBox)
+            intern(rotor);
+        for (Enigma.Rotor rotor : Enigma.rotorsNaval)
+            intern(rotor);
+        }
+
+    /*
+     * The interned wheel with the name (any case).  Throws
+     * IllegalArgumentException for an unknown name or a bad UKW-D wiring.
+     */
+    public static Enigma.Rotor rotor(String name)
+        {
+        String sKey = name.toUpperCase();
+        Enigma.Rotor rotor;
+        synchronized (byName)
+            {
+            rotor = byName.get(sKey);
+            }
+        if (rotor != null)
+            return rotor;
+
+        if (sKey.startsWith(UKW_D_PREFIX))
+            return ukwDFromName(sKey);
+
+        throw new IllegalArgumentException("Invalid Rotor Name: " + name);
+        }
+
+    public static Enigma.Rotor rotor(int id)
+        {
+        synchronized (byName)
+            {
+            if (id < 0 || id >= byId.size())
+                throw new IllegalArgumentException("No rotor with id " + id);
+            return byId.get(id);
+            }
+        }
+
+    /*
+     * Number of wheels interned so far (ids are 0 to size() - 1; UKW-D
+     * wirings are not counted).
+     */
+    public static int size()
+        {
+        synchronized (byName)
+            {
+            return byId.size();
+            }
+        }
+
+    /*
+     * The wheel if it is new, or the one already interned under its name if
+     * that is wired the same.
+     */
+    static Enigma.Rotor intern(Enigma.Rotor rotor)
+        {
+        String sKey = rotor.name.toUpperCase();
+        synchronized (byName)
+            {
+            Enigma.Rotor existing = byName.get(sKey);
+            if (existing != null)
+                {
+                if (existing.kind != rotor.kind || !existing.wires.equals(rotor.wires)
+                        || !existing.notches.equals(rotor.notches))
+                    throw new IllegalArgumentException("Rotor " + rotor.name
+                            + " is already defined with a different wiring.");
+                return existing;
+                }
+
+            rotor.id = byId.size();
+            byId.add(rotor);
+            byName.put(sKey, rotor);
+            return rotor;
+            }
+        }
+
+    /*
+     * UKW-D for an upper case D name, from the LRU if in recent use.
+     */
+    private static Enigma.Rotor ukwDFromName(String sKey)
+        {
+        Enigma.Rotor rotor = ukwDs.get(sKey);
+        if (rotor != null)
+            return rotor;
+
+        rotor = ukwD(sKey.substring(UKW_D_PREFIX.length()));
+        Enigma.Rotor existing = ukwDs.get(rotor.name);
+        if (existing != null)
+            rotor = existing;
+        else
+            ukwDs.put(rotor.name, rotor);
+        ukwDs.put(sKey, rotor);
+        return rotor;
+        }
+
+    /*
+     * UKW-D wired with 12 pairs of the letters other than J and Y.
+     */
+    static Enigma.Rotor ukwD(String pairs)
+        {
+        pairs = pairs.toUpperCase().replaceAll("[^A-Z]", "");
+        if (pairs.length() != 24)
+            throw new IllegalArgumentException("UKW-D needs 12 pairs of letters: " + pairs);
+
+        char[] wires = new char[26];
+        wires['J' - 'A'] = 'Y';
+        wires['Y' - 'A'] = 'J';
+        for (int i = 0; i < 24; i += 2)
+            {
+            char chFrom = pairs.charAt(i);
+            char chTo = pairs.charAt(i + 1);
+            if (chFrom == 'J' || chFrom == 'Y' || chTo == 'J' || chTo == 'Y')
+                throw new IllegalArgumentException("UKW-D always pairs J and Y: " + pairs);
+            if (chFrom == chTo || wires[chFrom - 'A'] != 0 || wires[chTo - 'A'] != 0)
+                throw new IllegalArgumentException("UKW-D pairs must use each letter once: " + pairs);
+            wires[chFrom - 'A'] = chTo;
+            wires[chTo - 'A'] = chFrom;
+            }
+
+        // Canonical name: each pair from its first letter, in alphabet order.
+        StringBuilder sb = new StringBuilder(UKW_D_PREFIX);
+        for (int i = 0; i < 26; i++)
+            if (i < wires[i] - 'A' && i != 'J' - 'A')
+                sb.append(sb.length() > UKW_D_PREFIX.length() ? " " : "").append(Enigma.chFromI(i))
+                        .append(wires[i]);
+        return new Enigma.Rotor(sb.toString(), Enigma.Rotor.Kind.REFLECTOR, new String(wires), "");
+        }
+
+    /*
+     * Intern the wheels of a catalog, returned in the order listed.
+     */
+    public static List<Enigma.Rotor> read(Reader reader) throws IOException
+        {
+        BufferedReader in = new BufferedReader(reader);
+        List<Enigma.Rotor> rotors = new ArrayList<Enigma.Rotor>();
+        int iLine = 0;
+
+        for (String line; (line = in.readLine()) != null;)
+            {
+            iLine++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#"))
+                continue;
+
+            String[] fields = line.split("\\s+");
+            if (fields.length < 3 || fields.length > 4)
+                throw new IllegalArgumentException("Line " + iLine
+                        + ": expected name, kind, wiring and notches.");
+            rotors.add(intern(parse(fields, iLine)));
+            }
+        return rotors;
+        }
+
+    public static List<Enigma.Rotor> load(File file) throws IOException
+        {
+        return load(new FileInputStream(file));
+        }
+
+    /*
+     * Catalog from a resource on the class path, e.g.
+     * "/org/startpad/naval.txt".
+     */
+    public static List<Enigma.Rotor> loadResource(String sName) throws IOException
+        {
+        InputStream stream = RotorCatalog.class.getResourceAsStream(sName);
+        if (stream == null)
+            throw new IOException("No resource " + sName);
+        return load(stream);
+        }
+
+    private static List<Enigma.Rotor> load(InputStream stream) throws IOException
+        {
+        try
+            {
+            return read(new InputStreamReader(stream, "US-ASCII"));
+            }
+        finally
+            {
+            stream.close();
+            }
+        }
+
+    private static Enigma.Rotor parse(String[] fields, int iLine)
+        {
+        Enigma.Rotor.Kind kind;
+        String sKind = fields[1].toLowerCase();
+        if (sKind.equals("rotor"))
+            kind = Enigma.Rotor.Kind.ROTOR;
+        else if (sKind.equals("greek"))
+            kind = Enigma.Rotor.Kind.GREEK;
+        else if (sKind.equals("reflector"))
+            kind = Enigma.Rotor.Kind.REFLECTOR;
+        else if (sKind.equals("thin"))
+            kind = Enigma.Rotor.Kind.THIN_REFLECTOR;
+        else
+            throw new IllegalArgumentException("Line " + iLine + ": unknown kind " + fields[1]);
+
+        String wires = fields[2].toUpperCase();
+        String notches = fields.length > 3 ? fields[3].toUpperCase() : "";
+        if (fields[0].toUpperCase().startsWith(UKW_D_PREFIX))
+            throw new IllegalArgumentException("Line " + iLine + ": names starting "
+                    + UKW_D_PREFIX + " are kept for UKW-D.");
+        if (!wires.matches("[A-Z]{26}") || !notches.matches("[A-Z]*"))
+            throw new IllegalArgumentException("Line " + iLine + ": wiring must be 26 letters.");
+
+        int used = 0;
+        for (int i = 0; i < 26; i++)
+            used |= 1 << (wires.charAt(i) - 'A');
+        if (used != (1 << 26) - 1)
+            throw new IllegalArgumentException("Line " + iLine + ": wiring must use every letter once.");
+
+        boolean fReflector = kind == Enigma.Rotor.Kind.REFLECTOR
+                || kind == Enigma.Rotor.Kind.THIN_REFLECTOR;
+        if (fReflector)
+            for (int i = 0; i < 26; i++)
+                {
+                int j = wires.charAt(i) - 'A';
+                if (j == i || wires.charAt(j) - 'A' != i)
+                    throw new IllegalArgumentException("Line " + iLine
+                            + ": a reflector must swap letters in pairs.");
+                }
+        if (kind != Enigma.Rotor.Kind.ROTOR && notches.length() > 0)
+            throw new IllegalArgumentException("Line " + iLine + ": only stepping rotors have notches.");
+
+        return new Enigma.Rotor(fields[0], kind, wires, notches);
+        }
+    }
@@ -0,0 +1,247 @@
+/*
+  RotorSearch.java - Ciphertext-only rotor order and start position search.
+
+  Tries every rotor order that can be made from the rotors in
+  Enigma.rotorsBox, with each reflector in the box, at every one of the
+  26^3 start positions.  Each trial decryption is scored by its index of
+  coincidence - plain language is far more repetitive than the flat
+  letter distribution of a wrong key - and the best K keys are kept.
+
+  Ring settings are held fixed (AAA unless set) and the plugboard is left
+  empty; the best candidates are the starting point for recovering those.
+
+  Work is split into one task per rotor order and reflector.  Each task
+  compiles its key once (CompiledEnigma - the build costs about as much
+  as 26 letters of trial decryption per position) and hands batches of
+  start positions to a TrialDecryptor, so no objects are created per key
+  other than the few that make the top K.
+
+ */
+
+package org.startpad;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RotorSearch
+    {
+    public interface Progress
+        {
+        /*
+         * Called from the worker threads as keys are tried.
+         */
+        public void Callback(long cKeysTried, long cKeysTotal);
+        }
+
+    static public class Candidate implements Comparable<Candidate>
+        {
+        public final Enigma.Settings settings;
+        public final double score;
+
+        Candidate(Enigma.Settings settings, double score)
+            {
+            this.settings = settings;
+            this.score = score;
+            }
+
+        public int compareTo(Candidate other)
+            {
+            return Double.compare(this.score, other.score);
+            }
+
+        public String toString()
+            {
+            Enigma machine = new Enigma(null);
+            machine.init(this.settings);
+            return String.format("%.5f %s", this.score, machine.toString());
+            }
+        }
+
+    // Start positions per trial decryption batch (and per progress report).
+    static final int BATCH = 676;
+
+    int[] cipher;
+    int cTop;
+    char[] rings = new char[] { 'A', 'A', 'A' };
+    Progress progress;
+
+    volatile boolean fCancelled;
+    AtomicLong cKeysTried = new AtomicLong();
+    long cKeysTotal;
+    long nsElapsed;
+    int cThreads;
+
+    public RotorSearch(String ciphertext, int cTop)
+        {
+        String s = ciphertext.toUpperCase().replaceAll("[^A-Z]", "");
+
+        if (s.length() < 2)
+            throw new IllegalArgumentException("Ciphertext needs at least two letters.");
+        if (cTop < 1)
+            throw new IllegalArgumentException("Must keep at least one candidate.");
+
+        this.cipher = new int[s.length()];
+        for (int i = 0; i < this.cipher.length; i++)
+            this.cipher[i] = s.charAt(i) - 'A';
+        this.cTop = cTop;
+        }
+
+    public void setRings(char[] rings)
+        {
+        this.rings = rings.clone();
+        }
+
+    public void setProgress(Progress progress)
+        {
+        this.progress = progress;
+        }
+
+    /*
+     * Stop the search in progress; run() returns the best candidates found
+     * so far.  A later run() starts afresh.
+     */
+    public void cancel()
+        {
+        this.fCancelled = true;
+        }
+
+    public List<Candidate> run()
+        {
+        return run(ParallelEncoder.defaultExecutor(), Runtime.getRuntime().availableProcessors());
+        }
+
+    /*
+     * Search on the given executor.  cThreads is only used for the per
+     * thread throughput figure.
+     */
+    public List<Candidate> run(ExecutorService executor, int cThreads)
+        {
+        this.fCancelled = false;
+
+        List<Callable<List<Candidate>>> tasks = new ArrayList<Callable<List<Candidate>>>();
+        for (final Enigma.Settings settings : Enigma.rotorOrders(this.rings))
+            tasks.add(new Callable<List<Candidate>>()
+                {
+                public List<Candidate> call()
+                    {
+                    return searchOrder(settings);
+                    }
+                });
+
+        this.cThreads = cThreads;
+        this.cKeysTotal = (long) tasks.size() * CompiledEnigma.POSITIONS;
+        this.cKeysTried.set(0);
+
+        long nsStart = System.nanoTime();
+        PriorityQueue<Candidate> best = new PriorityQueue<Candidate>();
+        try
+            {
+            for (Future<List<Candidate>> result : executor.invokeAll(tasks))
+                for (Candidate candidate : result.get())
+                    keep(best, candidate);
+            }
+        catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted during rotor search", e);
+            }
+        catch (ExecutionException e)
+            {
+            throw new RuntimeException("Rotor search failed", e.getCause());
+            }
+        this.nsElapsed = System.nanoTime() - nsStart;
+
+        List<Candidate> list = new ArrayList<Candidate>(best);
+        Collections.sort(list, Collections.reverseOrder());
+        return list;
+        }
+
+    /*
+     * All start positions for one rotor order and reflector.
+     */
+    List<Candidate> searchOrder(Enigma.Settings settings)
+        {
+        PriorityQueue<Candidate> best = new PriorityQueue<Candidate>();
+        TrialDecryptor decryptor = TrialDecryptor.create(new CompiledEnigma(settings));
+
+        int[] starts = new int[BATCH];
+        int[] counts = new int[BATCH * 26];
+        long[] sums = new long[BATCH];
+        double norm = (double) this.cipher.length * (this.cipher.length - 1);
+        long sumThreshold = -1;
+
+        for (int iBatch = 0; iBatch < CompiledEnigma.POSITIONS; iBatch += BATCH)
+            {
+            if (this.fCancelled)
+                break;
+
+            for (int k = 0; k < BATCH; k++)
+                starts[k] = iBatch + k;
+
+            decryptor.histograms(this.cipher, starts, BATCH, counts);
+            TrialDecryptor.coincidences(counts, BATCH, sums);
+
+            for (int k = 0; k < BATCH; k++)
+                {
+                if (sums[k] <= sumThreshold)
+                    continue;
+
+                int iPos = starts[k];
+                Enigma.Settings found = new Enigma.Settings();
+                found.rotors = settings.rotors;
+                found.reflector = settings.reflector;
+                found.rings = settings.rings;
+                found.position = new char[] { Enigma.chFromI(iPos / 676),
+                        Enigma.chFromI(iPos / 26 % 26), Enigma.chFromI(iPos % 26) };
+                keep(best, new Candidate(found, sums[k] / norm));
+
+                if (best.size() == this.cTop)
+                    sumThreshold = Math.round(best.peek().score * norm);
+                }
+
+            reportProgress(BATCH);
+            }
+
+        return new ArrayList<Candidate>(best);
+        }
+
+    private void keep(PriorityQueue<Candidate> best, Candidate candidate)
+        {
+        if (best.size() < this.cTop)
+            best.add(candidate);
+        else if (candidate.score > best.peek().score)
+            {
+            best.poll();
+            best.add(candidate);
+            }
+        }
+
+    private void reportProgress(int cKeys)
+        {
+        long cTried = this.cKeysTried.addAndGet(cKeys);
+        if (this.progress != null)
+            this.progress.Callback(cTried, this.cKeysTotal);
+        }
+
+    public long keysTried()
+        {
+        return this.cKeysTried.get();
+        }
+
+    public double keysPerSecond()
+        {
+        return this.nsElapsed == 0 ? 0 : this.cKeysTried.get() * 1e9 / this.nsElapsed;
+        }
+
+    public double keysPerSecondPerThread()
+        {
+        return this.cThreads == 0 ? 0 : keysPerSecond() / this.cThreads;
+        }
+    }
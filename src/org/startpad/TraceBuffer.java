@@ -0,0 +1,224 @@
+/*
+  TraceBuffer.java - Allocation-free record of letters' paths through the
+  machine.
+
+  Each traced letter is stored as a fixed-size run of ints in one
+  preallocated ring buffer: the rotor positions it was encoded at and the
+  letter index after each stage (input, plugboard, each rotor, reflector,
+  each rotor back, plugboard).  Once the buffer is full the oldest events
+  are overwritten.  Nothing is turned into a String until the trace is
+  read, so a machine can be traced over real traffic:
+
+      TraceBuffer buffer = new TraceBuffer(1024, 100);  // every 100th letter
+      machine.setTraceBuffer(buffer);
+      ...
+      System.out.print(buffer);
+
+  Like Enigma itself, a buffer is not thread-safe - read it on the thread
+  doing the encoding, or after it has finished.
+
+ */
+
+package org.startpad;
+
+public class TraceBuffer
+    {
+    // Input, plugs, 4 rotors, reflector, 3 rotors back, plugs (M4 with Greek wheel)
+    public static final int MAX_STEPS = 12;
+
+    // cSteps, Greek wheel position (-1 for none), left, middle, right, path
+    static final int RECORD_SIZE = 5 + MAX_STEPS;
+
+    int capacity;
+    int cSample;
+    int[] records;
+    long[] letters;
+    long cLetters;
+    long cEvents;
+    int cUntilSample = 1;
+
+    public TraceBuffer(int capacity)
+        {
+        this(capacity, 1);
+        }
+
+    /*
+     * Hold the last capacity events, recording every cSample'th letter.
+     */
+    public TraceBuffer(int capacity, int cSample)
+        {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Trace buffer capacity must be positive: " + capacity);
+        if (cSample < 1)
+            throw new IllegalArgumentException("Sample interval must be positive: " + cSample);
+
+        this.capacity = capacity;
+        this.cSample = cSample;
+        this.records = new int[capacity * RECORD_SIZE];
+        this.letters = new long[capacity];
+        }
+
+    /*
+     * Called for every letter encoded; true if this one is to be recorded.
+     */
+    boolean sample()
+        {
+        this.cLetters++;
+        if (--this.cUntilSample > 0)
+            return false;
+        this.cUntilSample = this.cSample;
+        return true;
+        }
+
+    /*
+     * Record the sampled letter: the rotor positions it was encoded at and
+     * the first cSteps entries of path.
+     */
+    void record(int positionGreek, int[] position, int[] path, int cSteps)
+        {
+        int iSlot = (int) (this.cEvents % this.capacity);
+        int base = iSlot * RECORD_SIZE;
+
+        this.letters[iSlot] = this.cLetters - 1;
+        this.records[base] = cSteps;
+        this.records[base + 1] = positionGreek;
+        this.records[base + 2] = position[0];
+        this.records[base + 3] = position[1];
+        this.records[base + 4] = position[2];
+        System.arraycopy(path, 0, this.records, base + 5, cSteps);
+        this.cEvents++;
+
+        recorded();
+        }
+
+    /*
+     * Hook for subclasses, called after each event is recorded.
+     */
+    protected void recorded()
+        {
+        }
+
+    public void clear()
+        {
+        this.cLetters = 0;
+        this.cEvents = 0;
+        this.cUntilSample = 1;
+        }
+
+    /*
+     * Number of events held - at most the capacity.
+     */
+    public int size()
+        {
+        return (int) Math.min(this.cEvents, this.capacity);
+        }
+
+    /*
+     * Events recorded since the last clear(), including any overwritten.
+     */
+    public long eventCount()
+        {
+        return this.cEvents;
+        }
+
+    /*
+     * Letters seen (sampled or not) since the last clear().
+     */
+    public long letterCount()
+        {
+        return this.cLetters;
+        }
+
+    /*
+     * Accessors for held event k, oldest first (0 <= k < size()).
+     */
+    public long letter(int k)
+        {
+        return this.letters[slot(k)];
+        }
+
+    public int steps(int k)
+        {
+        return this.records[slot(k) * RECORD_SIZE];
+        }
+
+    public int step(int k, int iStep)
+        {
+        if (iStep < 0 || iStep >= steps(k))
+            throw new IndexOutOfBoundsException("No step " + iStep);
+        return this.records[slot(k) * RECORD_SIZE + 5 + iStep];
+        }
+
+    /*
+     * Position of the stepping rotor iRotor (0 left to 2 right).
+     */
+    public int position(int k, int iRotor)
+        {
+        if (iRotor < 0 || iRotor > 2)
+            throw new IndexOutOfBoundsException("No rotor " + iRotor);
+        return this.records[slot(k) * RECORD_SIZE + 2 + iRotor];
+        }
+
+    /*
+     * Position of the Greek wheel, or -1 on a three rotor machine.
+     */
+    public int positionGreek(int k)
+        {
+        return this.records[slot(k) * RECORD_SIZE + 1];
+        }
+
+    /*
+     * The path as letters, e.g. "N->W->G->T->U->W->H->K->E->Z->X->V".
+     */
+    public String path(int k)
+        {
+        int base = slot(k) * RECORD_SIZE;
+        int cSteps = this.records[base];
+        StringBuilder sb = new StringBuilder(cSteps * 3);
+
+        for (int iStep = 0; iStep < cSteps; iStep++)
+            {
+            if (iStep > 0)
+                sb.append("->");
+            sb.append(Enigma.chFromI(this.records[base + 5 + iStep]));
+            }
+        return sb.toString();
+        }
+
+    /*
+     * Rotor positions as letters, Greek wheel first if there is one.
+     */
+    public String sPosition(int k)
+        {
+        int base = slot(k) * RECORD_SIZE;
+        StringBuilder sb = new StringBuilder(4);
+
+        if (this.records[base + 1] >= 0)
+            sb.append(Enigma.chFromI(this.records[base + 1]));
+        for (int i = 0; i < 3; i++)
+            sb.append(Enigma.chFromI(this.records[base + 2 + i]));
+        return sb.toString();
+        }
+
+    /*
+     * One line per held event: letter number, positions and path.
+     */
+    public String toString()
+        {
+        StringBuilder sb = new StringBuilder();
+        int cHeld = size();
+
+        for (int k = 0; k < cHeld; k++)
+            sb.append(letter(k)).append(' ').append(sPosition(k)).append(' ')
+                    .append(path(k)).append('\n');
+        return sb.toString();
+        }
+
+    private int slot(int k)
+        {
+        int cHeld = size();
+        if (k < 0 || k >= cHeld)
+            throw new IndexOutOfBoundsException("No trace event " + k + " of " + cHeld);
+        return (int) ((this.cEvents - cHeld + k) % this.capacity);
+        }
+    }
@@ -0,0 +1,220 @@
+/*
+  TrialDecryptor.java - Decrypt one ciphertext from many start positions.
+
+  Key searches spend nearly all their time decrypting the same ciphertext
+  under thousands of neighbouring keys.  Given a CompiledEnigma (one rotor
+  order, rings and plugboard) this produces the letter histogram of the
+  trial decryption from each of a batch of start positions.
+
+  This class is the portable scalar kernel.  The SIMD kernel
+  (VectorTrialDecryptor, built only by the core module) runs one start
+  position per vector lane.  Its inner loop is gathers and scatters, so
+  whether it beats this loop depends on the CPU, the JVM and how close
+  together the start positions are (see TrialDecryptorBenchmark); create()
+  only returns it when the system property org.startpad.vector is true
+  and the JVM was started with --add-modules jdk.incubator.vector.
+
+  main() checks both kernels' histograms against counts of
+  Enigma.encodeChar output, over random keys, ciphertexts and batches of
+  start positions:
+
+    java --add-modules jdk.incubator.vector -cp pocket-enigma-core.jar \
+        org.startpad.TrialDecryptor [keys]
+
+ */
+
+package org.startpad;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class TrialDecryptor
+    {
+    static final String VECTOR_KERNEL = "org.startpad.VectorTrialDecryptor";
+    public static final String VECTOR_PROPERTY = "org.startpad.vector";
+
+    CompiledEnigma machine;
+
+    public TrialDecryptor(CompiledEnigma machine)
+        {
+        this.machine = machine;
+        }
+
+    /*
+     * The vector kernel if enabled and available, else the scalar one.
+     */
+    public static TrialDecryptor create(CompiledEnigma machine)
+        {
+        if (Boolean.getBoolean(VECTOR_PROPERTY))
+            return createVector(machine);
+        return new TrialDecryptor(machine);
+        }
+
+    /*
+     * The vector kernel regardless of the system property - falls back to
+     * scalar if the Vector API or the core module class is missing.
+     */
+    public static TrialDecryptor createVector(CompiledEnigma machine)
+        {
+        try
+            {
+            return (TrialDecryptor) Class.forName(VECTOR_KERNEL)
+                    .getConstructor(CompiledEnigma.class).newInstance(machine);
+            }
+        catch (Exception e)
+            {
+            return new TrialDecryptor(machine);
+            }
+        catch (LinkageError e)
+            {
+            return new TrialDecryptor(machine);
+            }
+        }
+
+    public String kernel()
+        {
+        return "scalar";
+        }
+
+    /*
+     * For each of the first cStarts position indices in starts (see
+     * CompiledEnigma.indexFromPosition) decrypt cipher (letter indices
+     * 0-25) and leave the letter counts in counts[k * 26 + letter].
+     */
+    public void histograms(int[] cipher, int[] starts, int cStarts, int[] counts)
+        {
+        histogramsScalar(cipher, starts, 0, cStarts, counts);
+        }
+
+    void histogramsScalar(int[] cipher, int[] starts, int iFirst, int iLim, int[] counts)
+        {
+        byte[] table = this.machine.table;
+        int[] next = this.machine.next;
+
+        for (int k = iFirst; k < iLim; k++)
+            {
+            int base = k * 26;
+            for (int i = 0; i < 26; i++)
+                counts[base + i] = 0;
+
+            int iCur = starts[k];
+            for (int i = 0; i < cipher.length; i++)
+                {
+                iCur = next[iCur];
+                counts[base + table[iCur * 26 + cipher[i]]]++;
+                }
+            }
+        }
+
+    /*
+     * Sum of n(n-1) over each histogram - the unnormalised index of
+     * coincidence.
+     */
+    public static void coincidences(int[] counts, int cKeys, long[] sums)
+        {
+        for (int k = 0; k < cKeys; k++)
+            {
+            long sum = 0;
+            for (int i = k * 26; i < k * 26 + 26; i++)
+                sum += counts[i] * (counts[i] - 1);
+            sums[k] = sum;
+            }
+        }
+
+    /*
+     * Compare the scalar and vector kernels with Enigma.encodeChar; exits
+     * with status 1 on any difference.
+     */
+    public static void main(String[] args)
+        {
+        int cKeys = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        String[] rotors = { "I", "II", "III", "IV", "V", "VI", "VII", "VIII" };
+        Random random = new Random(1940);
+        int cFailures = 0;
+        String sKernel = null;
+
+        for (int iKey = 0; iKey < cKeys; iKey++)
+            {
+            Enigma.Settings settings = new Enigma.Settings();
+            boolean fM4 = iKey % 4 == 3;
+            settings.rotors = fM4 ? new String[] { iKey % 8 == 3 ? "Beta" : "Gamma", "", "", "" }
+                    : new String[3];
+            settings.reflector = fM4 ? "C-Thin" : iKey % 2 == 0 ? "B" : "C";
+            int cFixed = settings.rotors.length - 3;
+            for (int r = 0; r < 3; r++)
+                {
+                String rotor;
+                do
+                    rotor = rotors[random.nextInt(rotors.length)];
+                while (Arrays.asList(settings.rotors).contains(rotor));
+                settings.rotors[cFixed + r] = rotor;
+                }
+            settings.rings = new char[settings.rotors.length];
+            settings.position = new char[settings.rotors.length];
+            for (int r = 0; r < settings.rotors.length; r++)
+                {
+                settings.rings[r] = Enigma.chFromI(random.nextInt(26));
+                settings.position[r] = Enigma.chFromI(random.nextInt(26));
+                }
+            StringBuilder sbPlugs = new StringBuilder();
+            char[] letters = "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+            for (int i = 25; i > 0; i--)
+                {
+                int j = random.nextInt(i + 1);
+                char ch = letters[i];
+                letters[i] = letters[j];
+                letters[j] = ch;
+                }
+            sbPlugs.append(letters, 0, 2 * random.nextInt(11));
+            settings.plugs = sbPlugs.toString();
+
+            CompiledEnigma machine = new CompiledEnigma(settings);
+            TrialDecryptor[] kernels = { new TrialDecryptor(machine), createVector(machine) };
+            sKernel = kernels[1].kernel();
+
+            // Lengths and batch sizes that are not whole vectors; starts
+            // either consecutive (as RotorSearch uses) or scattered.
+            int[] cipher = new int[1 + random.nextInt(300)];
+            for (int i = 0; i < cipher.length; i++)
+                cipher[i] = random.nextInt(26);
+            int cStarts = 1 + random.nextInt(100);
+            int[] starts = new int[cStarts];
+            int iFirst = random.nextInt(CompiledEnigma.POSITIONS);
+            for (int k = 0; k < cStarts; k++)
+                starts[k] = iKey % 2 == 0 ? (iFirst + k) % CompiledEnigma.POSITIONS
+                        : random.nextInt(CompiledEnigma.POSITIONS);
+
+            int[] expected = new int[cStarts * 26];
+            char[] text = new char[cipher.length];
+            for (int i = 0; i < cipher.length; i++)
+                text[i] = Enigma.chFromI(cipher[i]);
+            for (int k = 0; k < cStarts; k++)
+                {
+                settings.position[cFixed] = Enigma.chFromI(starts[k] / 676);
+                settings.position[cFixed + 1] = Enigma.chFromI(starts[k] / 26 % 26);
+                settings.position[cFixed + 2] = Enigma.chFromI(starts[k] % 26);
+                Enigma reference = new Enigma(null);
+                reference.init(settings);
+                for (char ch : text)
+                    expected[k * 26 + Enigma.iFromCh(reference.encodeChar(ch))]++;
+                }
+
+            for (TrialDecryptor kernel : kernels)
+                {
+                int[] counts = new int[cStarts * 26];
+                Arrays.fill(counts, -1);
+                kernel.histograms(cipher, starts, cStarts, counts);
+                if (!Arrays.equals(counts, expected))
+                    {
+                    cFailures++;
+                    System.out.println(kernel.kernel() + " differs from encodeChar for "
+                            + Arrays.toString(settings.rotors) + " rings " + new String(settings.rings)
+                            + " plugs " + settings.plugs);
+                    }
+                }
+            }
+
+        System.out.println(cKeys + " keys, scalar and " + sKernel + " kernels: " + cFailures + " failures");
+        System.exit(cFailures == 0 ? 0 : 1);
+        }
+    }
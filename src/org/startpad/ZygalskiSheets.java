@@ -0,0 +1,471 @@
+/*
+  ZygalskiSheets.java - Perforated sheets for indicators with females.
+
+  From late 1938 the operator chose a ground setting for each message,
+  sent it in clear, and enciphered the doubled message key from there.
+  An indicator with a repeated letter a pair apart (the first and fourth,
+  second and fifth or third and sixth) - a female - can only occur where
+  the product of the machine's permutations three key presses apart has
+  a fixed point.  The plugboard only relabels letters, so whether it has
+  one depends on the rotor order and the positions of the rotor cores.
+
+  A sheet is one rotor order with its left core at one position: a 26 by
+  26 matrix of middle by right core positions, perforated where the
+  permutations at that position and three right rotor steps later have a
+  fixed point.  Rows are packed 26 bits to an int.  A female seen at
+  window position (L, M, R) means the rings (rL, rM, rR) of the day are
+  such that the sheet for L - rL has a hole at (M - rM, R - rR); laying
+  every female's sheet at its own offset and ANDing them leaves only the
+  ring settings consistent with all of them - the apertures where light
+  shows through the stack.  Window positions come from the ground in
+  clear and the rotor order's notches, so a female whose pair of key
+  presses moves the middle rotor is not on any sheet and is left out for
+  that order.
+
+  Sheets for every rotor order from Enigma.rotorsBox (with each
+  reflector) are computed in parallel, one task per order, from each
+  order's CompiledEnigma tables.  Saved sheets are memory mapped: a
+  header and the names of the rotor orders, then the rows as big-endian
+  ints (318K in all).
+
+ */
+
+package org.startpad;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class ZygalskiSheets
+    {
+    static final int MAGIC = 0x5A594753; // "ZYGS"
+    static final int VERSION = 1;
+
+    static final int ROW_MASK = (1 << 26) - 1;
+    // 26 sheets of 26 rows for each rotor order.
+    static final int ORDER_ROWS = 26 * 26;
+
+    /*
+     * A repeated letter in one message's indicator: the ground setting it
+     * was enciphered at and which pair of key presses (0 for the first and
+     * fourth letters, 1 and 2 for the next two pairs) repeated.
+     */
+    static public class Female
+        {
+        public final char[] ground;
+        public final int iPair;
+
+        public Female(char[] ground, int iPair)
+            {
+            if (ground.length != 3 || iPair < 0 || iPair > 2)
+                throw new IllegalArgumentException("Female needs a three letter ground and pair 0 to 2.");
+            this.ground = ground.clone();
+            this.iPair = iPair;
+            }
+
+        /*
+         * Females in a message's six letter indicator (none, one or more).
+         */
+        public static List<Female> fromIndicator(String ground, String indicator)
+            {
+            byte[] letters = Bombe.indices(indicator);
+            if (letters.length != 6)
+                throw new IllegalArgumentException("Indicator must have six letters: " + indicator);
+            byte[] iGround = Bombe.indices(ground);
+            if (iGround.length != 3)
+                throw new IllegalArgumentException("Ground must have three letters: " + ground);
+            char[] chGround = new char[3];
+            for (int i = 0; i < 3; i++)
+                chGround[i] = Enigma.chFromI(iGround[i]);
+
+            List<Female> females = new ArrayList<Female>();
+            for (int i = 0; i < 3; i++)
+                if (letters[i] == letters[i + 3])
+                    females.add(new Female(chGround, i));
+            return females;
+            }
+
+        public String toString()
+            {
+            return new String(this.ground) + " " + Cyclometer.PRODUCTS[this.iPair];
+            }
+        }
+
+    List<Enigma.Settings> orders;
+    IntBuffer rows;
+    // Each row with its bits reversed, for laying sheets at an offset.
+    int[] mirrored;
+
+    public static ZygalskiSheets build()
+        {
+        return build(ParallelEncoder.defaultExecutor());
+        }
+
+    /*
+     * Sheets for every rotor order.
+     */
+    public static ZygalskiSheets build(ExecutorService executor)
+        {
+        final List<Enigma.Settings> orders = Enigma.rotorOrders(new char[] { 'A', 'A', 'A' });
+
+        List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>(orders.size());
+        for (final Enigma.Settings order : orders)
+            tasks.add(new Callable<int[]>()
+                {
+                public int[] call()
+                    {
+                    return sheets(new CompiledEnigma(order));
+                    }
+                });
+
+        ZygalskiSheets sheets = new ZygalskiSheets();
+        sheets.orders = orders;
+        sheets.rows = IntBuffer.allocate(orders.size() * ORDER_ROWS);
+        try
+            {
+            for (Future<int[]> result : executor.invokeAll(tasks))
+                sheets.rows.put(result.get());
+            }
+        catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted building the sheets", e);
+            }
+        catch (ExecutionException e)
+            {
+            throw new RuntimeException("Sheet build failed", e.getCause());
+            }
+        sheets.rows.rewind();
+        sheets.mirror();
+        return sheets;
+        }
+
+    /*
+     * The 26 sheets (one per left core position) of a rotor order compiled
+     * with rings at A: row L * 26 + M has bit R set where the permutations
+     * at cores (L, M, R) and (L, M, R + 3) have a product with a fixed
+     * point.
+     */
+    static int[] sheets(CompiledEnigma machine)
+        {
+        byte[] table = machine.table;
+        int[] rows = new int[ORDER_ROWS];
+
+        for (int iPos = 0; iPos < CompiledEnigma.POSITIONS; iPos++)
+            {
+            int r = iPos % 26;
+            int first = iPos * 26;
+            int fourth = (iPos - r + (r + 3) % 26) * 26;
+
+            for (int x = 0; x < 26; x++)
+                if (table[fourth + table[first + x]] == x)
+                    {
+                    rows[iPos / 26] |= 1 << r;
+                    break;
+                    }
+            }
+        return rows;
+        }
+
+    private void mirror()
+        {
+        this.mirrored = new int[this.rows.limit()];
+        for (int i = 0; i < this.mirrored.length; i++)
+            this.mirrored[i] = Integer.reverse(this.rows.get(i)) >>> 6;
+        }
+
+    /*
+     * Whether the sheet for a rotor order and left core position is
+     * perforated at the middle and right core positions.
+     */
+    public boolean isPerforated(int iOrder, int left, int middle, int right)
+        {
+        return (this.rows.get((iOrder * 26 + left) * 26 + middle) & (1 << right)) != 0;
+        }
+
+    public List<Enigma.Settings> orders()
+        {
+        return this.orders;
+        }
+
+    public List<Enigma.Settings> superimpose(List<Female> females)
+        {
+        return superimpose(females, ParallelEncoder.defaultExecutor());
+        }
+
+    /*
+     * Rotor orders and ring settings where every female (that fits on the
+     * order's sheets) falls on a hole, one task per rotor order.  Orders
+     * where none of the females fit are not reported.
+     */
+    public List<Enigma.Settings> superimpose(final List<Female> females, ExecutorService executor)
+        {
+        List<Callable<List<Enigma.Settings>>> tasks = new ArrayList<Callable<List<Enigma.Settings>>>(
+                this.orders.size());
+        for (int iOrder = 0; iOrder < this.orders.size(); iOrder++)
+            {
+            final int iOrderTask = iOrder;
+            tasks.add(new Callable<List<Enigma.Settings>>()
+                {
+                public List<Enigma.Settings> call()
+                    {
+                    return apertures(iOrderTask, females);
+                    }
+                });
+            }
+
+        List<Enigma.Settings> apertures = new ArrayList<Enigma.Settings>();
+        try
+            {
+            for (Future<List<Enigma.Settings>> result : executor.invokeAll(tasks))
+                apertures.addAll(result.get());
+            }
+        catch (InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted superimposing sheets", e);
+            }
+        catch (ExecutionException e)
+            {
+            throw new RuntimeException("Superimposing sheets failed", e.getCause());
+            }
+        return apertures;
+        }
+
+    List<Enigma.Settings> apertures(int iOrder, List<Female> females)
+        {
+        Enigma.Settings order = this.orders.get(iOrder);
+        List<Enigma.Settings> apertures = new ArrayList<Enigma.Settings>();
+
+        // Window position at the first key press of each female's pair.
+        List<int[]> windows = new ArrayList<int[]>(females.size());
+        for (Female female : females)
+            {
+            int[] window = window(order, female);
+            if (window != null)
+                windows.add(window);
+            }
+        if (windows.isEmpty())
+            return apertures;
+
+        int[] stack = new int[26];
+        for (int ringLeft = 0; ringLeft < 26; ringLeft++)
+            {
+            for (int ringMiddle = 0; ringMiddle < 26; ringMiddle++)
+                stack[ringMiddle] = ROW_MASK;
+
+            int fAny = ROW_MASK;
+            for (int[] window : windows)
+                {
+                // Bit rR of the row laid for ring rM is the sheet's bit
+                // (R - rR) of row (M - rM): the mirrored row rotated.
+                int base = (iOrder * 26 + (window[0] - ringLeft + 26) % 26) * 26;
+                int shift = (25 - window[2] + 26) % 26;
+                fAny = 0;
+                for (int ringMiddle = 0; ringMiddle < 26; ringMiddle++)
+                    {
+                    int row = this.mirrored[base + (window[1] - ringMiddle + 26) % 26];
+                    stack[ringMiddle] &= (row >>> shift | row << (26 - shift)) & ROW_MASK;
+                    fAny |= stack[ringMiddle];
+                    }
+                if (fAny == 0)
+                    break;
+                }
+            if (fAny == 0)
+                continue;
+
+            for (int ringMiddle = 0; ringMiddle < 26; ringMiddle++)
+                for (int ringRight = 0; ringRight < 26; ringRight++)
+                    if ((stack[ringMiddle] & (1 << ringRight)) != 0)
+                        {
+                        Enigma.Settings settings = new Enigma.Settings();
+                        settings.rotors = order.rotors.clone();
+                        settings.reflector = order.reflector;
+                        settings.rings = new char[] { Enigma.chFromI(ringLeft),
+                                Enigma.chFromI(ringMiddle), Enigma.chFromI(ringRight) };
+                        apertures.add(settings);
+                        }
+            }
+        return apertures;
+        }
+
+    /*
+     * Window position at the first key press of the female's pair for a
+     * rotor order, or null if the middle rotor moves before the second.
+     */
+    static int[] window(Enigma.Settings order, Female female)
+        {
+        Enigma machine = new Enigma(null);
+        Enigma.Settings settings = new Enigma.Settings();
+        settings.rotors = order.rotors;
+        settings.reflector = order.reflector;
+        settings.position = female.ground;
+        machine.init(settings);
+
+        int[] position = machine.position;
+        for (int i = 0; i <= female.iPair; i++)
+            machine.incrementRotors();
+        int[] window = position.clone();
+        for (int i = 0; i < 3; i++)
+            machine.incrementRotors();
+
+        if (position[0] != window[0] || position[1] != window[1])
+            return null;
+        return window;
+        }
+
+    /*
+     * Build (or map) the sheets and superimpose a day's females:
+     *
+     *   java org.startpad.ZygalskiSheets sheets.bin [indicators.txt]
+     *
+     * The sheets file is built and saved if it does not exist; indicators
+     * are read one per line, the ground in clear then the six letters
+     * (e.g. "RTJ WAHWIK").
+     */
+    public static void main(String[] args) throws IOException
+        {
+        if (args.length < 1 || args.length > 2)
+            {
+            System.err.println("Usage: ZygalskiSheets sheets [indicators]");
+            System.exit(2);
+            }
+
+        long nsStart = System.nanoTime();
+        ZygalskiSheets sheets = load(new File(args[0]));
+        System.out.println(String.format("%s: %d rotor orders (%.1f s)", args[0],
+                sheets.orders.size(), (System.nanoTime() - nsStart) / 1e9));
+
+        if (args.length > 1)
+            {
+            List<Female> females = new ArrayList<Female>();
+            BufferedReader in = new BufferedReader(new FileReader(args[1]));
+            try
+                {
+                for (String line; (line = in.readLine()) != null;)
+                    {
+                    String[] parts = line.trim().split("\\s+");
+                    if (parts.length == 2)
+                        females.addAll(Female.fromIndicator(parts[0], parts[1]));
+                    }
+                }
+            finally
+                {
+                in.close();
+                }
+
+            System.out.println(females.size() + " females");
+            for (Enigma.Settings settings : sheets.superimpose(females))
+                System.out.println(settings.reflector + "-" + settings.rotors[0] + "-"
+                        + settings.rotors[1] + "-" + settings.rotors[2] + " rings "
+                        + new String(settings.rings));
+            }
+        System.exit(0);
+        }
+
+    /*
+     * Sheets mapped from the file, or built and saved there if it does
+     * not exist yet.
+     */
+    public static ZygalskiSheets load(File file) throws IOException
+        {
+        if (file.exists())
+            return map(file);
+
+        ZygalskiSheets sheets = build();
+        sheets.save(file);
+        return sheets;
+        }
+
+    public void save(File file) throws IOException
+        {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try
+            {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(this.orders.size());
+
+            // Names padded to whole ints, so the rows that follow are
+            // aligned in the mapping.
+            int cb = 0;
+            for (Enigma.Settings order : this.orders)
+                {
+                String sOrder = order.reflector + "," + order.rotors[0] + "," + order.rotors[1]
+                        + "," + order.rotors[2];
+                out.writeByte(sOrder.length());
+                out.writeBytes(sOrder);
+                cb += 1 + sOrder.length();
+                }
+            for (int i = cb % 4; i != 0 && i < 4; i++)
+                out.writeByte(0);
+
+            for (int i = 0; i < this.rows.limit(); i++)
+                out.writeInt(this.rows.get(i));
+            }
+        finally
+            {
+            out.close();
+            }
+        }
+
+    /*
+     * Sheets saved by save(), mapped read-only.
+     */
+    public static ZygalskiSheets map(File file) throws IOException
+        {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+            {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (mapped.limit() < 12 || mapped.getInt() != MAGIC)
+                throw new IOException(file + " is not a set of Zygalski sheets.");
+            int version = mapped.getInt();
+            if (version != VERSION)
+                throw new IOException(file + " is sheets version " + version);
+
+            ZygalskiSheets sheets = new ZygalskiSheets();
+            int cOrders = mapped.getInt();
+            sheets.orders = new ArrayList<Enigma.Settings>(cOrders);
+            for (int i = 0; i < cOrders; i++)
+                {
+                byte[] name = new byte[mapped.get()];
+                mapped.get(name);
+                String[] parts = new String(name, "US-ASCII").split(",");
+
+                Enigma.Settings order = new Enigma.Settings();
+                order.reflector = parts[0];
+                order.rotors = new String[] { parts[1], parts[2], parts[3] };
+                sheets.orders.add(order);
+                }
+            mapped.position((mapped.position() + 3) & ~3);
+
+            if (mapped.remaining() != 4L * cOrders * ORDER_ROWS)
+                throw new IOException(file + " is truncated.");
+            sheets.rows = mapped.slice().asIntBuffer();
+            sheets.mirror();
+            return sheets;
+            }
+        finally
+            {
+            raf.close();
+            }
+        }
+    }
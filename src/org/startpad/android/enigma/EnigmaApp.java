@@ -1,6 +1,7 @@
 package org.startpad.android.enigma;
 
 import org.startpad.Enigma;
+import org.startpad.IncrementalEncoder;
 
 import org.startpad.android.enigma.R;
 
@@ -102,6 +103,8 @@ public class EnigmaApp extends TabActivity
     TextView output;
     Enigma.Settings settings = new Enigma.Settings();
     Enigma machine = new Enigma(null);
+    IncrementalEncoder encoder = new IncrementalEncoder(settings);
+    int iEditStart = 0;
     Toast toast;
     boolean fLegalSettings = true;
     String sSettingsError;
@@ -112,21 +115,22 @@ public class EnigmaApp extends TabActivity
     
     private void updateEncoding()
         {
-        String code;
+        CharSequence code;
         
-        try
-            {
-            machine.init(null);
-            code = machine.encode(edit.getText().toString());
-            }
-        catch (Exception e)
+        if (!fLegalSettings)
             {
             output.setText("- error -");
             return;
             }
         
+        // Only the text from the first edit since the last update is re-encoded.
+        encoder.update(edit.getText(), iEditStart);
+        iEditStart = Integer.MAX_VALUE;
+        
         if (fGroup)
-            code = Enigma.groupLetters(code);
+            code = encoder.getGrouped();
+        else
+            code = encoder.getOutput();
         
         output.setText(code);
         
@@ -154,6 +158,8 @@ public class EnigmaApp extends TabActivity
     	try
     	    {
     	    machine.init(settings);
+    	    encoder.setSettings(settings);
+    	    iEditStart = 0;
     	    }
     	catch (Exception e)
     	    {
@@ -254,7 +260,10 @@ public class EnigmaApp extends TabActivity
 				}
 
 			public void beforeTextChanged(CharSequence s, int start, int count,	int after) {}
-			public void onTextChanged(CharSequence s, int start, int before, int count) {}
+			public void onTextChanged(CharSequence s, int start, int before, int count)
+				{
+				iEditStart = Math.min(iEditStart, start);
+				}
         	});
         
         // Initialize Wikipedia-based info WebView